@@ -0,0 +1,144 @@
+package com.devebot.opflow;
+
+import com.rabbitmq.client.Channel;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.Timer;
+import java.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces the acknowledgements of one channel into basicAck(multiple=true)
+ * frames. A multiple ack settles every unsettled delivery up to its tag, and
+ * the broker rejects it if the tag itself is not unsettled, so the flushed tag
+ * is the highest completed tag that is still below every delivery in progress.
+ * The nacks are sent immediately, a later multiple ack does not touch them.
+ *
+ * @author drupalex
+ */
+public class OpflowAckCoalescer implements AutoCloseable {
+    public final static String[] PARAMETER_NAMES = new String[] {
+        "ackBatchSize", "ackFlushInterval"
+    };
+
+    private final static Logger LOG = LoggerFactory.getLogger(OpflowAckCoalescer.class);
+    private final static Timer TIMER = new Timer("opflow-ack-coalescer", true);
+
+    private final OpflowLogTracer logTracer;
+    private final Channel channel;
+    private final int batchSize;
+    private final TreeSet<Long> outstanding = new TreeSet<>();
+    private final TreeSet<Long> completed = new TreeSet<>();
+    private final TimerTask flushTask;
+    private boolean closed = false;
+
+    /**
+     * @return true if the consume options ask for the coalesced acks; they
+     * only apply to a consumer that is not autoAck
+     */
+    public static boolean isConfigured(Map<String, Object> opts) {
+        return opts.get("ackBatchSize") instanceof Integer && (Integer) opts.get("ackBatchSize") > 1;
+    }
+
+    public OpflowAckCoalescer(String consumerId, Channel channel, int batchSize, long flushInterval) {
+        this.channel = channel;
+        this.batchSize = batchSize;
+        this.logTracer = OpflowLogTracer.ROOT.branch("consumerId", consumerId);
+        this.flushTask = new TimerTask() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+        TIMER.scheduleAtFixedRate(flushTask, flushInterval, flushInterval);
+    }
+
+    /**
+     * @param deliveryTag the tag of a delivery that is going to be processed
+     */
+    public synchronized void register(long deliveryTag) {
+        outstanding.add(deliveryTag);
+    }
+
+    /**
+     * @return true if the delivery has been registered and not settled yet
+     */
+    public synchronized boolean isOutstanding(long deliveryTag) {
+        return outstanding.contains(deliveryTag);
+    }
+
+    public synchronized void ack(long deliveryTag) throws IOException {
+        outstanding.remove(deliveryTag);
+        if (closed) {
+            channel.basicAck(deliveryTag, false);
+            return;
+        }
+        completed.add(deliveryTag);
+        if (completed.size() >= batchSize) {
+            doFlush();
+        }
+    }
+
+    public synchronized void nack(long deliveryTag, boolean requeue) throws IOException {
+        channel.basicNack(deliveryTag, false, requeue);
+        outstanding.remove(deliveryTag);
+    }
+
+    public synchronized void flush() {
+        try {
+            doFlush();
+        } catch (IOException | RuntimeException exception) {
+            if (logTracer.ready(LOG, "error")) LOG.error(logTracer
+                    .put("exceptionClass", exception.getClass().getName())
+                    .put("exceptionMessage", exception.getMessage())
+                    .text("AckCoalescer[${consumerId}] flush() has failed")
+                    .stringify());
+        }
+    }
+
+    private void doFlush() throws IOException {
+        if (completed.isEmpty()) return;
+        if (!channel.isOpen()) {
+            // the unsettled deliveries have been requeued by the broker
+            completed.clear();
+            outstanding.clear();
+            return;
+        }
+        Long upperTag = outstanding.isEmpty() ? completed.last() : completed.lower(outstanding.first());
+        if (upperTag == null) return;
+        channel.basicAck(upperTag, true);
+        completed.headSet(upperTag, true).clear();
+        if (logTracer.ready(LOG, "trace")) LOG.trace(logTracer
+                .put("deliveryTag", upperTag)
+                .put("pending", completed.size())
+                .text("AckCoalescer[${consumerId}] acked up to deliveryTag[${deliveryTag}], pending: ${pending}")
+                .stringify());
+    }
+
+    /**
+     * Flush the pending acks; the deliveries that are still in progress will
+     * be acked one by one when they complete.
+     */
+    @Override
+    public synchronized void close() {
+        flushTask.cancel();
+        closed = true;
+        flush();
+        try {
+            if (channel.isOpen()) {
+                for (Long deliveryTag : completed) {
+                    channel.basicAck(deliveryTag, false);
+                }
+            }
+        } catch (IOException | RuntimeException exception) {
+            if (logTracer.ready(LOG, "error")) LOG.error(logTracer
+                    .put("exceptionClass", exception.getClass().getName())
+                    .put("exceptionMessage", exception.getMessage())
+                    .text("AckCoalescer[${consumerId}] close() has failed")
+                    .stringify());
+        }
+        completed.clear();
+    }
+}
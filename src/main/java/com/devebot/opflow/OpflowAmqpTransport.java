@@ -0,0 +1,43 @@
+package com.devebot.opflow;
+
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The default transport, the connections are opened to a RabbitMQ broker.
+ *
+ * @author drupalex
+ */
+public class OpflowAmqpTransport implements OpflowTransport {
+    private final ConnectionFactory factory;
+
+    public OpflowAmqpTransport(ConnectionFactory factory) {
+        this.factory = factory;
+    }
+
+    public ConnectionFactory getFactory() {
+        return factory;
+    }
+
+    @Override
+    public Connection newConnection() throws IOException, TimeoutException {
+        return factory.newConnection();
+    }
+
+    @Override
+    public String getHost() {
+        return factory.getHost();
+    }
+
+    @Override
+    public int getPort() {
+        return factory.getPort();
+    }
+
+    @Override
+    public String getVirtualHost() {
+        return factory.getVirtualHost();
+    }
+}
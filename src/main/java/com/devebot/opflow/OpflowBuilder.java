@@ -63,6 +63,21 @@ public class OpflowBuilder {
         params.put("responseDurable", handlerNode.get("responseDurable"));
         params.put("responseExclusive", handlerNode.get("responseExclusive"));
         params.put("responseAutoDelete", handlerNode.get("responseAutoDelete"));
+        params.put("responseMode", handlerNode.get("responseMode"));
+        params.put("forkedPoolSize", handlerNode.get("forkedPoolSize"));
+        params.put("forkedIdleTimeout", handlerNode.get("forkedIdleTimeout"));
+        params.put("coalescingRoutines", handlerNode.get("coalescingRoutines"));
+        params.put("hedgingRoutines", handlerNode.get("hedgingRoutines"));
+        params.put("hedgingPercentile", handlerNode.get("hedgingPercentile"));
+        params.put("hedgingBudget", handlerNode.get("hedgingBudget"));
+        params.put("batchingRoutines", handlerNode.get("batchingRoutines"));
+        params.put("batchingLinger", handlerNode.get("batchingLinger"));
+        params.put("batchingMaxSize", handlerNode.get("batchingMaxSize"));
+        params.put("limiterEnabled", handlerNode.get("limiterEnabled"));
+        params.put("limiterRoutines", handlerNode.get("limiterRoutines"));
+        params.put("limiterInitialLimit", handlerNode.get("limiterInitialLimit"));
+        params.put("limiterMaxLimit", handlerNode.get("limiterMaxLimit"));
+        params.put("limiterWaitTimeout", handlerNode.get("limiterWaitTimeout"));
         
         transformParameters(params);
         
@@ -107,6 +122,11 @@ public class OpflowBuilder {
         
         params.put("responseName", handlerNode.get("responseName"));
         params.put("prefetch", handlerNode.get("prefetch"));
+        params.put("consumerCount", handlerNode.get("consumerCount"));
+        params.put("expiredReplyEnabled", handlerNode.get("expiredReplyEnabled"));
+        OpflowUtil.copyParameters(params, handlerNode, OpflowPrefetchController.PARAMETER_NAMES);
+        OpflowUtil.copyParameters(params, handlerNode, OpflowProcessingExecutor.PARAMETER_NAMES);
+        OpflowUtil.copyParameters(params, handlerNode, OpflowAckCoalescer.PARAMETER_NAMES);
         
         transformParameters(params);
         
@@ -153,6 +173,10 @@ public class OpflowBuilder {
         params.put("prefetch", handlerNode.get("prefetch"));
         params.put("subscriberLimit", handlerNode.get("subscriberLimit"));
         params.put("redeliveredLimit", handlerNode.get("redeliveredLimit"));
+        params.put("consumerCount", handlerNode.get("consumerCount"));
+        OpflowUtil.copyParameters(params, handlerNode, OpflowPrefetchController.PARAMETER_NAMES);
+        OpflowUtil.copyParameters(params, handlerNode, OpflowProcessingExecutor.PARAMETER_NAMES);
+        OpflowUtil.copyParameters(params, handlerNode, OpflowAckCoalescer.PARAMETER_NAMES);
         
         transformParameters(params);
         
@@ -199,6 +223,21 @@ public class OpflowBuilder {
                 componentCfg.put("responseExclusive", componentNode.get("responseExclusive"));
                 componentCfg.put("responseAutoDelete", componentNode.get("responseAutoDelete"));
                 componentCfg.put("responseQueueSuffix", componentNode.get("responseQueueSuffix"));
+                componentCfg.put("responseMode", componentNode.get("responseMode"));
+                componentCfg.put("forkedPoolSize", componentNode.get("forkedPoolSize"));
+                componentCfg.put("forkedIdleTimeout", componentNode.get("forkedIdleTimeout"));
+                componentCfg.put("coalescingRoutines", componentNode.get("coalescingRoutines"));
+                componentCfg.put("hedgingRoutines", componentNode.get("hedgingRoutines"));
+                componentCfg.put("hedgingPercentile", componentNode.get("hedgingPercentile"));
+                componentCfg.put("hedgingBudget", componentNode.get("hedgingBudget"));
+                componentCfg.put("batchingRoutines", componentNode.get("batchingRoutines"));
+                componentCfg.put("batchingLinger", componentNode.get("batchingLinger"));
+                componentCfg.put("batchingMaxSize", componentNode.get("batchingMaxSize"));
+                componentCfg.put("limiterEnabled", componentNode.get("limiterEnabled"));
+                componentCfg.put("limiterRoutines", componentNode.get("limiterRoutines"));
+                componentCfg.put("limiterInitialLimit", componentNode.get("limiterInitialLimit"));
+                componentCfg.put("limiterMaxLimit", componentNode.get("limiterMaxLimit"));
+                componentCfg.put("limiterWaitTimeout", componentNode.get("limiterWaitTimeout"));
                 componentCfg.put("monitorId", componentNode.get("monitorId"));
                 componentCfg.put("monitorEnabled", componentNode.get("monitorEnabled"));
                 componentCfg.put("monitorInterval", componentNode.get("monitorInterval"));
@@ -206,6 +245,11 @@ public class OpflowBuilder {
             }
             if ("rpcWatcher".equals(componentName)) {
                 componentCfg.put("interval", componentNode.get("interval"));
+                componentCfg.put("breakerFailureRate", componentNode.get("breakerFailureRate"));
+                componentCfg.put("breakerMinimumCalls", componentNode.get("breakerMinimumCalls"));
+                componentCfg.put("breakerWindow", componentNode.get("breakerWindow"));
+                componentCfg.put("breakerOpenDuration", componentNode.get("breakerOpenDuration"));
+                componentCfg.put("breakerTrialCalls", componentNode.get("breakerTrialCalls"));
             }
             if ("restServer".equals(componentName)) {
                 componentCfg.put("host", componentNode.get("host"));
@@ -269,10 +313,19 @@ public class OpflowBuilder {
             if ("rpcWorker".equals(componentName)) {
                 componentCfg.put("operatorName", componentNode.get("operatorName"));
                 componentCfg.put("responseName", componentNode.get("responseName"));
+                componentCfg.put("consumerCount", componentNode.get("consumerCount"));
+                componentCfg.put("expiredReplyEnabled", componentNode.get("expiredReplyEnabled"));
+                OpflowUtil.copyParameters(componentCfg, componentNode, OpflowPrefetchController.PARAMETER_NAMES);
+                OpflowUtil.copyParameters(componentCfg, componentNode, OpflowProcessingExecutor.PARAMETER_NAMES);
+                OpflowUtil.copyParameters(componentCfg, componentNode, OpflowAckCoalescer.PARAMETER_NAMES);
             }
             if ("subscriber".equals(componentName)) {
                 componentCfg.put("subscriberName", componentNode.get("subscriberName"));
                 componentCfg.put("recyclebinName", componentNode.get("recyclebinName"));
+                componentCfg.put("consumerCount", componentNode.get("consumerCount"));
+                OpflowUtil.copyParameters(componentCfg, componentNode, OpflowPrefetchController.PARAMETER_NAMES);
+                OpflowUtil.copyParameters(componentCfg, componentNode, OpflowProcessingExecutor.PARAMETER_NAMES);
+                OpflowUtil.copyParameters(componentCfg, componentNode, OpflowAckCoalescer.PARAMETER_NAMES);
             }
             transformParameters(componentCfg);
             params.put(componentName, componentCfg);
@@ -478,24 +531,34 @@ public class OpflowBuilder {
     
     private static final String[] BOOLEAN_FIELDS = new String[] {
         "enabled", "verbose", "automaticRecoveryEnabled", "topologyRecoveryEnabled", "monitorEnabled",
-        "responseDurable", "responseExclusive", "responseAutoDelete"
+        "responseDurable", "responseExclusive", "responseAutoDelete", "producingChannelRecycle",
+        "confirmEnabled", "prefetchAdaptive", "limiterEnabled", "expiredReplyEnabled"
     };
 
     private static final String[] STRING_FIELDS = new String[] {
-        "responseQueueSuffix"
+        "responseQueueSuffix", "processingPoolType", "processingOrderKey"
     };
     
-    private static final String[] STRING_ARRAY_FIELDS = new String[] { "otherKeys" };
+    private static final String[] STRING_ARRAY_FIELDS = new String[] {
+        "otherKeys", "coalescingRoutines", "hedgingRoutines", "batchingRoutines", "limiterRoutines"
+    };
     
     private static final String[] INTEGER_FIELDS = new String[] {
         "port", "channelMax", "frameMax", "heartbeat", "networkRecoveryInterval", 
-        "prefetch", "subscriberLimit", "redeliveredLimit", "monitorInterval", "threadPoolSize"
+        "prefetch", "subscriberLimit", "redeliveredLimit", "monitorInterval", "threadPoolSize",
+        "producingChannelPoolSize", "maxOutstandingConfirms", "adminChannelPoolSize", "consumerCount",
+        "prefetchMin", "prefetchMax", "processingPoolSize", "forkedPoolSize", "ackBatchSize",
+        "hedgingPercentile", "hedgingBudget", "batchingMaxSize",
+        "breakerFailureRate", "breakerMinimumCalls", "breakerTrialCalls",
+        "limiterInitialLimit", "limiterMaxLimit"
     };
     
     private static final String[] INTEGER_ARRAY_FIELDS = new String[] { "ports" };
     
     private static final String[] LONGINT_FIELDS = new String[] {
-        "expiration", "interval", "monitorTimeout"
+        "expiration", "interval", "monitorTimeout", "producingChannelCheckoutTimeout",
+        "confirmTimeout", "prefetchInterval", "forkedIdleTimeout", "batchingLinger",
+        "breakerWindow", "breakerOpenDuration", "limiterWaitTimeout", "ackFlushInterval"
     };
     
     private static void transformParameters(Map<String, Object> params) {
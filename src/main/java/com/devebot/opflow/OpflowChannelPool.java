@@ -0,0 +1,250 @@
+package com.devebot.opflow;
+
+import com.devebot.opflow.exception.OpflowOperationException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded set of channels opened on one connection. Each channel is leased
+ * exclusively to one caller at a time, so the publishers do not queue up on
+ * the internal lock of a single shared channel.
+ *
+ * @author drupalex
+ */
+public class OpflowChannelPool {
+    public final static String AFFINITY_THREAD = "thread";
+    public final static String AFFINITY_ROUND_ROBIN = "round-robin";
+
+    private final static Logger LOG = LoggerFactory.getLogger(OpflowChannelPool.class);
+    private final OpflowLogTracer logTracer;
+
+    public interface ConnectionProvider {
+        public Connection getConnection() throws IOException, TimeoutException;
+    }
+
+    public interface ChannelInitializer {
+        /**
+         * Prepare a channel that has just been opened for a slot.
+         *
+         * @param channel the new channel
+         * @return an object attached to the channel, exposed by Lease.getAttachment()
+         * @throws IOException if the channel could not be prepared
+         */
+        public Object initChannel(Channel channel) throws IOException;
+    }
+
+    private final String poolId;
+    private final ConnectionProvider provider;
+    private final ChannelInitializer initializer;
+    private final Slot[] slots;
+    private final long checkoutTimeout;
+    private final boolean threadAffinity;
+    private final boolean recycleEnabled;
+    private final AtomicInteger cursor = new AtomicInteger();
+    private final ThreadLocal<Integer> boundSlot = new ThreadLocal<>();
+    private volatile boolean closed = false;
+
+    public OpflowChannelPool(String poolId, ConnectionProvider provider, int size, long checkoutTimeout,
+            String affinity, boolean recycleEnabled) {
+        this(poolId, provider, null, size, checkoutTimeout, affinity, recycleEnabled);
+    }
+
+    public OpflowChannelPool(String poolId, ConnectionProvider provider, ChannelInitializer initializer,
+            int size, long checkoutTimeout, String affinity, boolean recycleEnabled) {
+        this.poolId = (poolId != null) ? poolId : OpflowUtil.getLogID();
+        this.provider = provider;
+        this.initializer = initializer;
+        this.slots = new Slot[size > 0 ? size : 1];
+        for (int i=0; i<this.slots.length; i++) {
+            this.slots[i] = new Slot(i);
+        }
+        this.checkoutTimeout = checkoutTimeout;
+        this.threadAffinity = !AFFINITY_ROUND_ROBIN.equals(affinity);
+        this.recycleEnabled = recycleEnabled;
+        this.logTracer = OpflowLogTracer.ROOT.branch("channelPoolId", this.poolId);
+        if (logTracer.ready(LOG, "debug")) LOG.debug(logTracer
+                .put("poolSize", this.slots.length)
+                .put("checkoutTimeout", this.checkoutTimeout)
+                .put("threadAffinity", this.threadAffinity)
+                .put("recycleEnabled", this.recycleEnabled)
+                .text("ChannelPool[${channelPoolId}] has been created with size: ${poolSize}, checkoutTimeout: ${checkoutTimeout}")
+                .stringify());
+    }
+
+    public int getSize() {
+        return slots.length;
+    }
+
+    /**
+     * Checkout a channel. In the thread affinity mode each thread is bound to
+     * a slot (given in round-robin order on its first checkout), so that the
+     * messages published by one thread go through the same channel. When the
+     * bound slot is leased by another thread, the thread moves to a free slot
+     * if there is one and waits for its own slot otherwise. The round-robin
+     * mode takes any free slot.
+     *
+     * @return the lease that must be closed to give the channel back
+     * @throws IOException if the channel could not be opened
+     * @throws TimeoutException if the connection could not be established
+     * @throws OpflowOperationException if no channel is available before the checkoutTimeout
+     */
+    public Lease acquire() throws IOException, TimeoutException {
+        if (closed) {
+            throw new OpflowOperationException("ChannelPool[" + poolId + "] has been closed");
+        }
+        Slot slot = null;
+        int start;
+        if (threadAffinity) {
+            Integer bound = boundSlot.get();
+            start = (bound != null) ? bound : (cursor.getAndIncrement() & Integer.MAX_VALUE) % slots.length;
+        } else {
+            start = (cursor.getAndIncrement() & Integer.MAX_VALUE) % slots.length;
+        }
+        for (int i=0; i<slots.length; i++) {
+            Slot candidate = slots[(start + i) % slots.length];
+            if (candidate.permit.tryAcquire()) {
+                slot = candidate;
+                break;
+            }
+        }
+        if (slot == null) {
+            Slot candidate = slots[start];
+            try {
+                if (!candidate.permit.tryAcquire(checkoutTimeout, TimeUnit.MILLISECONDS)) {
+                    if (logTracer.ready(LOG, "warn")) LOG.warn(logTracer
+                            .put("checkoutTimeout", checkoutTimeout)
+                            .text("ChannelPool[${channelPoolId}] checkout is timeout (${checkoutTimeout} ms)")
+                            .stringify());
+                    throw new OpflowOperationException("ChannelPool[" + poolId + "] checkout is timeout");
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new OpflowOperationException("ChannelPool[" + poolId + "] checkout has been interrupted", ie);
+            }
+            slot = candidate;
+        }
+        if (threadAffinity) {
+            boundSlot.set(slot.index);
+        }
+        try {
+            Channel channel = ensureChannel(slot);
+            return new Lease(slot, channel, slot.attachment);
+        } catch (IOException | TimeoutException | RuntimeException exception) {
+            slot.permit.release();
+            throw exception;
+        }
+    }
+
+    private Channel ensureChannel(final Slot slot) throws IOException, TimeoutException {
+        Channel channel = slot.channel;
+        if (channel != null && channel.isOpen()) {
+            return channel;
+        }
+        if (slot.used && !recycleEnabled) {
+            throw new OpflowOperationException("Channel is null or has been closed");
+        }
+        channel = provider.getConnection().createChannel();
+        final Channel created = channel;
+        Object attachment = null;
+        if (initializer != null) {
+            try {
+                attachment = initializer.initChannel(created);
+            } catch (IOException | RuntimeException exception) {
+                if (created.isOpen()) {
+                    try {
+                        created.close();
+                    } catch (IOException | TimeoutException ignored) {}
+                }
+                throw exception;
+            }
+        }
+        created.addShutdownListener(new ShutdownListener() {
+            @Override
+            public void shutdownCompleted(ShutdownSignalException sse) {
+                if (slot.channel == created) {
+                    slot.channel = null;
+                }
+                if (logTracer.ready(LOG, "info")) LOG.info(logTracer
+                        .put("slotIndex", slot.index)
+                        .put("channelNumber", created.getChannelNumber())
+                        .text("ChannelPool[${channelPoolId}] channel[${channelNumber}] of slot[${slotIndex}] has been shutdown")
+                        .stringify());
+            }
+        });
+        slot.attachment = attachment;
+        slot.channel = created;
+        slot.used = true;
+        if (logTracer.ready(LOG, "info")) LOG.info(logTracer
+                .put("slotIndex", slot.index)
+                .put("channelNumber", created.getChannelNumber())
+                .text("ChannelPool[${channelPoolId}] channel[${channelNumber}] of slot[${slotIndex}] is created")
+                .stringify());
+        return created;
+    }
+
+    public void close() throws IOException, TimeoutException {
+        closed = true;
+        for (Slot slot : slots) {
+            Channel channel = slot.channel;
+            slot.channel = null;
+            if (channel != null && channel.isOpen()) {
+                if (logTracer.ready(LOG, "info")) LOG.info(logTracer
+                        .put("slotIndex", slot.index)
+                        .put("channelNumber", channel.getChannelNumber())
+                        .text("ChannelPool[${channelPoolId}] channel[${channelNumber}] of slot[${slotIndex}] is closing")
+                        .stringify());
+                channel.close();
+            }
+        }
+    }
+
+    public class Lease implements AutoCloseable {
+        private final Slot slot;
+        private final Channel channel;
+        private final Object attachment;
+        private boolean released = false;
+
+        private Lease(Slot slot, Channel channel, Object attachment) {
+            this.slot = slot;
+            this.channel = channel;
+            this.attachment = attachment;
+        }
+
+        public Channel getChannel() {
+            return channel;
+        }
+
+        public Object getAttachment() {
+            return attachment;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                slot.permit.release();
+            }
+        }
+    }
+
+    private static class Slot {
+        private final int index;
+        private final Semaphore permit = new Semaphore(1);
+        private volatile Channel channel;
+        private volatile Object attachment;
+        private volatile boolean used = false;
+
+        Slot(int index) {
+            this.index = index;
+        }
+    }
+}
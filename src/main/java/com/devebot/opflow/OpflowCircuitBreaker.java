@@ -0,0 +1,189 @@
+package com.devebot.opflow;
+
+/**
+ * The circuit breaker of one routine. It counts the outcomes of the calls in
+ * a rolling window of time buckets:
+ * - CLOSED: the calls go through; the breaker opens when the failure rate
+ *   (failed and timed out calls) in the window reaches failureRate, once the
+ *   window holds at least minimumCalls outcomes.
+ * - OPEN: the calls are rejected until openDuration has elapsed.
+ * - HALF_OPEN: at most trialCalls calls are let through; the breaker closes
+ *   when all of them succeed and opens again at the first failure.
+ * Every allowed call holds a Permit, so that an outcome is only counted in
+ * the state (and the period of that state) in which its call was allowed.
+ *
+ * @author drupalex
+ */
+public class OpflowCircuitBreaker {
+    private final static int BUCKET_COUNT = 10;
+
+    public static enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN;
+    }
+
+    public static class Permit {
+        private final long generation;
+        private final boolean trial;
+
+        private Permit(long generation, boolean trial) {
+            this.generation = generation;
+            this.trial = trial;
+        }
+
+        public boolean isTrial() {
+            return trial;
+        }
+    }
+
+    private final String routineId;
+    private final int failureRate;
+    private final int minimumCalls;
+    private final long bucketDuration;
+    private final long openDuration;
+    private final int trialCalls;
+
+    private final long[] bucketEpochs = new long[BUCKET_COUNT];
+    private final int[] bucketSuccesses = new int[BUCKET_COUNT];
+    private final int[] bucketFailures = new int[BUCKET_COUNT];
+
+    private State state = State.CLOSED;
+    private long generation = 0;
+    private long openedTime = 0;
+    private int trialsIssued = 0;
+    private int trialsSucceeded = 0;
+
+    /**
+     * @param failureRate the failure rate (in percents) that opens the breaker
+     * @param minimumCalls the number of outcomes in the window before the rate is evaluated
+     * @param window the length of the rolling window in milliseconds
+     * @param openDuration how long the breaker stays open in milliseconds
+     * @param trialCalls the number of trial calls of the half-open state
+     */
+    public OpflowCircuitBreaker(String routineId, int failureRate, int minimumCalls, long window, long openDuration, int trialCalls) {
+        this.routineId = routineId;
+        this.failureRate = Math.min(Math.max(failureRate, 1), 100);
+        this.minimumCalls = Math.max(minimumCalls, 1);
+        this.bucketDuration = Math.max(window / BUCKET_COUNT, 1);
+        this.openDuration = Math.max(openDuration, 0);
+        this.trialCalls = Math.max(trialCalls, 1);
+    }
+
+    public String getRoutineId() {
+        return routineId;
+    }
+
+    public synchronized State getState() {
+        if (state == State.OPEN && OpflowUtil.getCurrentTime() - openedTime >= openDuration) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    /**
+     * @return the permit of the call if it may go through, null otherwise; a
+     * call that has been allowed must report its outcome with onSuccess(),
+     * onFailure() or onCancel()
+     */
+    public synchronized Permit allowRequest() {
+        if (state == State.OPEN) {
+            if (OpflowUtil.getCurrentTime() - openedTime < openDuration) return null;
+            halfOpen();
+        }
+        if (state == State.HALF_OPEN) {
+            if (trialsIssued >= trialCalls) return null;
+            trialsIssued++;
+            return new Permit(generation, true);
+        }
+        return new Permit(generation, false);
+    }
+
+    public synchronized void onSuccess(Permit permit) {
+        if (!isCurrent(permit)) return;
+        if (permit.trial) {
+            trialsSucceeded++;
+            if (trialsSucceeded >= trialCalls) close();
+        } else {
+            record(true);
+        }
+    }
+
+    public synchronized void onFailure(Permit permit) {
+        if (!isCurrent(permit)) return;
+        if (permit.trial) {
+            open();
+        } else {
+            record(false);
+            if (isFailureRateExceeded()) open();
+        }
+    }
+
+    /**
+     * Give back the permission of an allowed call that has not been sent.
+     */
+    public synchronized void onCancel(Permit permit) {
+        if (!isCurrent(permit)) return;
+        if (permit.trial && trialsIssued > 0) trialsIssued--;
+    }
+
+    /**
+     * The outcomes of the calls allowed before the last transition (i.e. the
+     * calls still running when the breaker opened) are not counted.
+     */
+    private boolean isCurrent(Permit permit) {
+        return permit != null && permit.generation == generation;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        generation++;
+        openedTime = OpflowUtil.getCurrentTime();
+    }
+
+    private void halfOpen() {
+        state = State.HALF_OPEN;
+        generation++;
+        trialsIssued = 0;
+        trialsSucceeded = 0;
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        generation++;
+        for (int i=0; i<BUCKET_COUNT; i++) {
+            bucketEpochs[i] = 0;
+            bucketSuccesses[i] = 0;
+            bucketFailures[i] = 0;
+        }
+    }
+
+    private void record(boolean success) {
+        long epoch = OpflowUtil.getCurrentTime() / bucketDuration;
+        int index = (int) (epoch % BUCKET_COUNT);
+        if (bucketEpochs[index] != epoch) {
+            bucketEpochs[index] = epoch;
+            bucketSuccesses[index] = 0;
+            bucketFailures[index] = 0;
+        }
+        if (success) {
+            bucketSuccesses[index]++;
+        } else {
+            bucketFailures[index]++;
+        }
+    }
+
+    private boolean isFailureRateExceeded() {
+        long epoch = OpflowUtil.getCurrentTime() / bucketDuration;
+        int successes = 0;
+        int failures = 0;
+        for (int i=0; i<BUCKET_COUNT; i++) {
+            if (epoch - bucketEpochs[i] < BUCKET_COUNT) {
+                successes += bucketSuccesses[i];
+                failures += bucketFailures[i];
+            }
+        }
+        int total = successes + failures;
+        return total >= minimumCalls && failures * 100 >= failureRate * total;
+    }
+}
@@ -5,6 +5,7 @@ import com.devebot.opflow.annotation.OpflowSourceRoutine;
 import com.devebot.opflow.exception.OpflowBootstrapException;
 import com.devebot.opflow.exception.OpflowInterceptionException;
 import com.devebot.opflow.exception.OpflowRequestFailureException;
+import com.devebot.opflow.exception.OpflowRequestRejectedException;
 import com.devebot.opflow.exception.OpflowRequestTimeoutException;
 import io.undertow.server.HttpHandler;
 import java.lang.annotation.Annotation;
@@ -316,6 +317,8 @@ public class OpflowCommander implements AutoCloseable {
         private final boolean reserveWorkerEnabled;
         private final Map<String, String> aliasOfMethod = new HashMap<>();
         private final Map<String, Boolean> methodIsAsync = new HashMap<>();
+        private final Map<String, OpflowResultCache> cacheOfMethod = new HashMap<>();
+        private final Map<String, OpflowSourceRoutine.CacheKey> cacheKeyOfMethod = new HashMap<>();
         private final OpflowRpcMaster rpcMaster;
         private final OpflowPubsubHandler publisher;
 
@@ -339,6 +342,16 @@ public class OpflowCommander implements AutoCloseable {
                             .stringify());
                 }
                 methodIsAsync.put(methodId, (routine != null) && routine.isAsync());
+                if (routine != null && routine.cacheTtl() > 0 && method.getReturnType() != void.class) {
+                    cacheOfMethod.put(methodId, new OpflowResultCache(routine.cacheTtl(), routine.cacheMaxEntries()));
+                    cacheKeyOfMethod.put(methodId, routine.cacheKey());
+                    if (logTracer.ready(LOG, "trace")) LOG.trace(logTracer
+                            .put("routineId", methodId)
+                            .put("cacheTtl", routine.cacheTtl())
+                            .put("cacheMaxEntries", routine.cacheMaxEntries())
+                            .text("enable the result cache of routineId")
+                            .stringify());
+                }
             }
             this.rpcMaster = rpcMaster;
             this.publisher = publisher;
@@ -391,21 +404,64 @@ public class OpflowCommander implements AutoCloseable {
                         .stringify());
             }
 
-            // rpc switching
-            if (rpcWatcher.isCongested() && !pingSignature.equals(routineId)) {
+            OpflowResultCache cache = cacheOfMethod.get(methodId);
+            String cacheKey = null;
+            if (cache != null) {
+                cacheKey = (cacheKeyOfMethod.get(methodId) == OpflowSourceRoutine.CacheKey.ROUTINE) ? "" : body;
+                byte[] cached = cache.get(cacheKey);
+                if (cached != null) {
+                    if (logRequest.ready(LOG, "trace")) LOG.trace(logRequest
+                            .text("Request[${requestId}] - RpcInvocationHandler.invoke() return the cached output")
+                            .stringify());
+                    exporter.incRpcInvocationEvent("commander", commanderId, routineId, "cached");
+                    return OpflowJsontool.toObject(OpflowUtil.getString(cached), method.getReturnType());
+                }
+            }
+
+            // rpc switching: only the routines whose circuit breaker is open fail over
+            OpflowCircuitBreaker breaker = null;
+            OpflowCircuitBreaker.Permit permit = null;
+            if (this.hasReserveWorker() && !pingSignature.equals(routineId)) {
+                breaker = rpcWatcher.getCircuitBreaker(routineId);
+                permit = breaker.allowRequest();
+                if (permit == null) {
+                    if (logRequest.ready(LOG, "debug")) LOG.debug(logRequest
+                            .put("routineId", routineId)
+                            .text("Request[${requestId}] - RpcInvocationHandler.invoke() - circuit of routine[${routineId}] is open, use the reserve worker")
+                            .stringify());
+                    exporter.incRpcInvocationEvent("commander", commanderId, routineId, "rejected");
+                    return method.invoke(this.reserveWorker, args);
+                }
+            }
+
+            OpflowRpcResult rpcResult;
+            try {
+                OpflowRpcRequest rpcSession = rpcMaster.request(routineId, body, OpflowUtil.buildMap()
+                        .put("requestId", requestId)
+                        .put("progressEnabled", false)
+                        .toMap());
+                rpcResult = rpcSession.extractResult(false);
+            } catch (OpflowRequestRejectedException exception) {
+                // the master is saturated, the workers have not failed
+                if (breaker != null) breaker.onCancel(permit);
                 if (this.hasReserveWorker()) {
                     return method.invoke(this.reserveWorker, args);
                 }
+                throw exception;
+            } catch (RuntimeException exception) {
+                if (breaker != null) breaker.onFailure(permit);
+                throw exception;
             }
 
-            OpflowRpcRequest rpcSession = rpcMaster.request(routineId, body, OpflowUtil.buildMap()
-                    .put("requestId", requestId)
-                    .put("progressEnabled", false)
-                    .toMap());
-            OpflowRpcResult rpcResult = rpcSession.extractResult(false);
+            if (breaker != null) {
+                if (rpcResult.isCompleted()) {
+                    breaker.onSuccess(permit);
+                } else {
+                    breaker.onFailure(permit);
+                }
+            }
 
             if (rpcResult.isTimeout()) {
-                rpcWatcher.setCongested(true);
                 if (this.hasReserveWorker()) {
                     return method.invoke(this.reserveWorker, args);
                 }
@@ -425,6 +481,10 @@ public class OpflowCommander implements AutoCloseable {
 
             if (method.getReturnType() == void.class) return null;
 
+            if (cache != null && rpcResult.isCompleted()) {
+                cache.put(cacheKey, rpcResult.getValue());
+            }
+
             return OpflowJsontool.toObject(rpcResult.getValueAsString(), method.getReturnType());
         }
     }
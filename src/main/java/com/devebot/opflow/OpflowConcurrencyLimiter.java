@@ -0,0 +1,144 @@
+package com.devebot.opflow;
+
+/**
+ * An adaptive limit of the in-flight requests, in the gradient style: the
+ * limit follows the ratio between the lowest round-trip time observed
+ * (the baseline, when nothing is queued) and the current one.
+ * - while the round-trip time stays under tolerance times the baseline, the
+ *   limit grows by about its square root, but only when the requests actually
+ *   use more than half of it;
+ * - when the round-trip time grows over that, the limit shrinks in proportion;
+ * - a request that times out shrinks the limit by BACKOFF (multiplicative
+ *   decrease), the workers are assumed to be overloaded.
+ *
+ * The baseline is learnt again every BASELINE_RESET samples, so that a slower
+ * (or faster) set of workers does not keep an obsolete reference.
+ *
+ * @author drupalex
+ */
+public class OpflowConcurrencyLimiter {
+    private final static double TOLERANCE = 2.0;
+    private final static double SMOOTHING = 0.2;
+    private final static double BACKOFF = 0.9;
+    private final static int BASELINE_RESET = 1000;
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+
+    private double limit;
+    private int inflight = 0;
+    private long baseline = 0;
+    private int sampleCount = 0;
+    private long rejectedCount = 0;
+
+    /**
+     * @param initialLimit the limit before any round-trip time is observed
+     * @param minLimit the lowest limit, at least 1
+     * @param maxLimit the highest limit
+     */
+    public OpflowConcurrencyLimiter(String name, int initialLimit, int minLimit, int maxLimit) {
+        this.name = name;
+        this.minLimit = Math.max(minLimit, 1);
+        this.maxLimit = Math.max(maxLimit, this.minLimit);
+        this.limit = Math.min(Math.max(initialLimit, this.minLimit), this.maxLimit);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Take a slot for a new request. When the limit is reached, the caller
+     * waits at most waitTimeout milliseconds (0 means a fast rejection) for a
+     * slot to be released. A granted slot must be released with onReply(),
+     * onTimeout() or onCancel().
+     *
+     * @return false if the request has been rejected
+     */
+    public synchronized boolean acquire(long waitTimeout) {
+        if (inflight < (int) limit) {
+            inflight++;
+            return true;
+        }
+        if (waitTimeout > 0) {
+            long deadline = System.nanoTime() + waitTimeout * 1000000l;
+            try {
+                while (inflight >= (int) limit) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) break;
+                    wait(remaining / 1000000l, (int) (remaining % 1000000l));
+                }
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+            if (inflight < (int) limit) {
+                inflight++;
+                return true;
+            }
+        }
+        rejectedCount++;
+        return false;
+    }
+
+    /**
+     * Release the slot of a request that has received its final reply.
+     *
+     * @param rtt the round-trip time of the request in nanoseconds
+     */
+    public synchronized void onReply(long rtt) {
+        int _inflight = inflight;
+        release();
+        if (rtt <= 0) return;
+        if (++sampleCount >= BASELINE_RESET) {
+            sampleCount = 0;
+            baseline = 0;
+        }
+        if (baseline == 0 || rtt < baseline) {
+            baseline = rtt;
+        }
+        double gradient = Math.min(Math.max(TOLERANCE * baseline / rtt, 0.5), 1.0);
+        if (gradient >= 1.0 && _inflight * 2 < limit) {
+            // the requests do not use the limit, no evidence that it can grow
+            return;
+        }
+        double target = limit * gradient + Math.sqrt(limit);
+        setLimit(limit * (1 - SMOOTHING) + target * SMOOTHING);
+    }
+
+    /**
+     * Release the slot of a request that has timed out.
+     */
+    public synchronized void onTimeout() {
+        release();
+        setLimit(limit * BACKOFF);
+    }
+
+    /**
+     * Release the slot of a request that has not been sent.
+     */
+    public synchronized void onCancel() {
+        release();
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInflight() {
+        return inflight;
+    }
+
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    private void release() {
+        if (inflight > 0) inflight--;
+        notifyAll();
+    }
+
+    private void setLimit(double newLimit) {
+        limit = Math.min(Math.max(newLimit, minLimit), maxLimit);
+    }
+}
@@ -0,0 +1,271 @@
+package com.devebot.opflow;
+
+import com.devebot.opflow.exception.OpflowOperationException;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the outstanding publish sequence numbers of one confirm-mode channel
+ * and resolves them in bulk from the broker ack/nack callbacks. The sequence
+ * numbers are registered in publish order, so the ring buffer is always sorted
+ * and a multiple=true ack only pops the head of the ring. A single ack only
+ * empties its slot (the ring shrinks when the head is resolved), so the
+ * window of maxOutstandingConfirms counts the unresolved entries apart.
+ *
+ * @author drupalex
+ */
+public class OpflowConfirmTracker implements ConfirmListener, ShutdownListener {
+    private final static Logger LOG = LoggerFactory.getLogger(OpflowConfirmTracker.class);
+    private final OpflowLogTracer logTracer;
+
+    private final int maxOutstanding;
+    private final long waitTimeout;
+    private long[] seqNos;
+    private Confirmation[] items;
+    private int head = 0;
+    private int size = 0;
+    private int outstanding = 0;
+    private boolean closed = false;
+
+    public OpflowConfirmTracker(String trackerId, int maxOutstanding, long waitTimeout) {
+        this.maxOutstanding = maxOutstanding;
+        this.waitTimeout = waitTimeout;
+        int capacity = 16;
+        while (maxOutstanding > 0 && capacity < maxOutstanding && capacity < (1 << 16)) capacity <<= 1;
+        this.seqNos = new long[capacity];
+        this.items = new Confirmation[capacity];
+        this.logTracer = OpflowLogTracer.ROOT.branch("confirmTrackerId", trackerId);
+    }
+
+    /**
+     * Register the sequence number of the next publish. Blocks while the
+     * maxOutstandingConfirms window is full.
+     *
+     * @param seqNo the value of Channel.getNextPublishSeqNo() before the publish
+     * @return the confirmation that will be resolved by the broker callbacks
+     */
+    public Confirmation register(long seqNo) {
+        Confirmation confirmation = new Confirmation(seqNo);
+        synchronized (this) {
+            if (maxOutstanding > 0 && outstanding >= maxOutstanding) {
+                long deadline = System.currentTimeMillis() + waitTimeout;
+                try {
+                    while (outstanding >= maxOutstanding && !closed) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            throw new OpflowOperationException("maxOutstandingConfirms exceed: " + outstanding + "/" + maxOutstanding);
+                        }
+                        this.wait(remaining);
+                    }
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new OpflowOperationException("waiting for the confirms has been interrupted", ie);
+                }
+            }
+            if (closed) {
+                throw new OpflowOperationException("Channel is null or has been closed");
+            }
+            if (size == seqNos.length) grow();
+            int tail = (head + size) & (seqNos.length - 1);
+            seqNos[tail] = seqNo;
+            items[tail] = confirmation;
+            size++;
+            outstanding++;
+        }
+        return confirmation;
+    }
+
+    /**
+     * Resolve as unconfirmed the registered publish that has failed before
+     * reaching the broker (the channel being still open).
+     */
+    public void cancel(Confirmation confirmation) {
+        Confirmation removed;
+        synchronized (this) {
+            removed = take(confirmation.getSequenceNumber());
+            if (removed != null) this.notifyAll();
+        }
+        if (removed != null) removed.complete(false);
+    }
+
+    public synchronized int getOutstanding() {
+        return outstanding;
+    }
+
+    @Override
+    public void handleAck(long deliveryTag, boolean multiple) {
+        resolve(deliveryTag, multiple, true);
+    }
+
+    @Override
+    public void handleNack(long deliveryTag, boolean multiple) {
+        if (logTracer.ready(LOG, "warn")) LOG.warn(logTracer
+                .put("deliveryTag", deliveryTag)
+                .put("multiple", multiple)
+                .text("ConfirmTracker[${confirmTrackerId}] publish[${deliveryTag}] has been nacked (multiple: ${multiple})")
+                .stringify());
+        resolve(deliveryTag, multiple, false);
+    }
+
+    @Override
+    public void shutdownCompleted(ShutdownSignalException sse) {
+        List<Confirmation> resolved = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            while (size > 0) {
+                if (items[head] != null) resolved.add(items[head]);
+                items[head] = null;
+                head = (head + 1) & (seqNos.length - 1);
+                size--;
+            }
+            outstanding = 0;
+            this.notifyAll();
+        }
+        if (!resolved.isEmpty() && logTracer.ready(LOG, "warn")) LOG.warn(logTracer
+                .put("outstanding", resolved.size())
+                .text("ConfirmTracker[${confirmTrackerId}] channel has been shutdown, ${outstanding} publishes are unconfirmed")
+                .stringify());
+        for (Confirmation confirmation : resolved) {
+            confirmation.complete(false);
+        }
+    }
+
+    private void resolve(long deliveryTag, boolean multiple, boolean acked) {
+        List<Confirmation> resolved = new ArrayList<>();
+        synchronized (this) {
+            int mask = seqNos.length - 1;
+            if (multiple) {
+                while (size > 0 && seqNos[head] <= deliveryTag) {
+                    if (items[head] != null) {
+                        resolved.add(items[head]);
+                        outstanding--;
+                    }
+                    items[head] = null;
+                    head = (head + 1) & mask;
+                    size--;
+                }
+            } else {
+                Confirmation confirmation = take(deliveryTag);
+                if (confirmation != null) resolved.add(confirmation);
+            }
+            if (!resolved.isEmpty()) this.notifyAll();
+        }
+        for (Confirmation confirmation : resolved) {
+            confirmation.complete(acked);
+        }
+    }
+
+    /**
+     * Remove the entry of a sequence number (binary search in the sorted
+     * ring), then drop the empty slots at the head of the ring.
+     */
+    private Confirmation take(long seqNo) {
+        int mask = seqNos.length - 1;
+        Confirmation confirmation = null;
+        int lo = 0, hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long value = seqNos[(head + mid) & mask];
+            if (value < seqNo) {
+                lo = mid + 1;
+            } else if (value > seqNo) {
+                hi = mid - 1;
+            } else {
+                int index = (head + mid) & mask;
+                confirmation = items[index];
+                items[index] = null;
+                if (confirmation != null) outstanding--;
+                break;
+            }
+        }
+        while (size > 0 && items[head] == null) {
+            head = (head + 1) & mask;
+            size--;
+        }
+        return confirmation;
+    }
+
+    private void grow() {
+        int capacity = seqNos.length << 1;
+        long[] newSeqNos = new long[capacity];
+        Confirmation[] newItems = new Confirmation[capacity];
+        for (int i=0; i<size; i++) {
+            int index = (head + i) & (seqNos.length - 1);
+            newSeqNos[i] = seqNos[index];
+            newItems[i] = items[index];
+        }
+        seqNos = newSeqNos;
+        items = newItems;
+        head = 0;
+    }
+
+    public static class Confirmation {
+        private final long sequenceNumber;
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile boolean acked = false;
+        private List<Listener> listeners;
+
+        public Confirmation(long sequenceNumber) {
+            this.sequenceNumber = sequenceNumber;
+        }
+
+        public long getSequenceNumber() {
+            return sequenceNumber;
+        }
+
+        public boolean isDone() {
+            return latch.getCount() == 0;
+        }
+
+        public boolean isAcked() {
+            return acked;
+        }
+
+        /**
+         * @param timeout the maximum time to wait in milliseconds
+         * @return true if the broker has acked the message
+         * @throws InterruptedException if the current thread is interrupted
+         */
+        public boolean await(long timeout) throws InterruptedException {
+            return latch.await(timeout, TimeUnit.MILLISECONDS) && acked;
+        }
+
+        public void addListener(Listener listener) {
+            synchronized (this) {
+                if (!isDone()) {
+                    if (listeners == null) listeners = new ArrayList<>(1);
+                    listeners.add(listener);
+                    return;
+                }
+            }
+            listener.handleEvent(this);
+        }
+
+        void complete(boolean acked) {
+            List<Listener> _listeners;
+            synchronized (this) {
+                if (isDone()) return;
+                this.acked = acked;
+                latch.countDown();
+                _listeners = listeners;
+                listeners = null;
+            }
+            if (_listeners != null) {
+                for (Listener listener : _listeners) {
+                    listener.handleEvent(this);
+                }
+            }
+        }
+
+        public interface Listener {
+            public void handleEvent(Confirmation confirmation);
+        }
+    }
+}
@@ -13,11 +13,18 @@ import java.io.IOException;
 import java.net.URISyntaxException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeoutException;
 import javax.net.ssl.SSLContext;
 import org.slf4j.Logger;
@@ -39,7 +46,10 @@ public class OpflowEngine implements AutoCloseable {
         "threadPoolType", "threadPoolSize",
         "exchangeName", "exchangeType", "exchangeDurable", "routingKey", "otherKeys", "applicationId",
         "automaticRecoveryEnabled", "topologyRecoveryEnabled", "networkRecoveryInterval",
-        "pkcs12File", "pkcs12Passphrase", "caCertFile", "serverCertFile", "trustStoreFile", "trustPassphrase"
+        "pkcs12File", "pkcs12Passphrase", "caCertFile", "serverCertFile", "trustStoreFile", "trustPassphrase",
+        "producingChannelPoolSize", "producingChannelAffinity", "producingChannelCheckoutTimeout", "producingChannelRecycle",
+        "confirmEnabled", "maxOutstandingConfirms", "confirmTimeout",
+        "adminChannelPoolSize", "transport"
     };
 
     private final static Logger LOG = LoggerFactory.getLogger(OpflowEngine.class);
@@ -48,8 +58,14 @@ public class OpflowEngine implements AutoCloseable {
 
     private String mode;
     private ConnectionFactory factory;
+    private OpflowTransport transport;
     private Connection producingConnection;
-    private Channel producingChannel;
+    private OpflowChannelPool producingChannelPool;
+    private Connection adminConnection;
+    private OpflowChannelPool adminChannelPool;
+    private final Set<String> declaredTopology = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private boolean confirmEnabled = false;
+    private long confirmTimeout = 10000l;
     private Connection consumingConnection;
     private Channel consumingChannel;
     private List<ConsumerInfo> consumerInfos = new LinkedList<>();
@@ -302,6 +318,132 @@ public class OpflowEngine implements AutoCloseable {
                             + "networkRecoveryInterval: ${networkRecoveryInterval}")
                     .stringify());
 
+            if (params.get("transport") instanceof OpflowTransport) {
+                transport = (OpflowTransport) params.get("transport");
+            } else if ("memory".equals(params.get("transport"))) {
+                transport = OpflowMemoryTransport.getInstance(factory.getVirtualHost());
+            } else {
+                transport = new OpflowAmqpTransport(factory);
+            }
+            if (logTracer.ready(LOG, "info")) LOG.info(logTracer
+                    .put("transport", transport.getClass().getSimpleName())
+                    .text("Engine[${engineId}] use transport: ${transport}")
+                    .stringify());
+            
+            Integer producingChannelPoolSize = null;
+            if (params.get("producingChannelPoolSize") instanceof Integer) {
+                producingChannelPoolSize = (Integer) params.get("producingChannelPoolSize");
+            }
+            if (producingChannelPoolSize == null || producingChannelPoolSize <= 0) {
+                producingChannelPoolSize = 1;
+            }
+            
+            String producingChannelAffinity = OpflowChannelPool.AFFINITY_THREAD;
+            if (params.get("producingChannelAffinity") instanceof String) {
+                producingChannelAffinity = (String) params.get("producingChannelAffinity");
+            }
+            
+            Long producingChannelCheckoutTimeout = null;
+            if (params.get("producingChannelCheckoutTimeout") instanceof Long) {
+                producingChannelCheckoutTimeout = (Long) params.get("producingChannelCheckoutTimeout");
+            } else if (params.get("producingChannelCheckoutTimeout") instanceof Integer) {
+                producingChannelCheckoutTimeout = ((Integer) params.get("producingChannelCheckoutTimeout")).longValue();
+            }
+            if (producingChannelCheckoutTimeout == null || producingChannelCheckoutTimeout <= 0) {
+                producingChannelCheckoutTimeout = 5000l;
+            }
+            
+            Boolean producingChannelRecycle = Boolean.TRUE;
+            if (params.get("producingChannelRecycle") instanceof Boolean) {
+                producingChannelRecycle = (Boolean) params.get("producingChannelRecycle");
+            }
+            
+            if (params.get("confirmEnabled") instanceof Boolean) {
+                confirmEnabled = (Boolean) params.get("confirmEnabled");
+            }
+            
+            Integer maxOutstandingConfirms = null;
+            if (params.get("maxOutstandingConfirms") instanceof Integer) {
+                maxOutstandingConfirms = (Integer) params.get("maxOutstandingConfirms");
+            }
+            if (maxOutstandingConfirms == null || maxOutstandingConfirms < 0) {
+                maxOutstandingConfirms = 1024;
+            }
+            final int _maxOutstandingConfirms = maxOutstandingConfirms;
+            
+            if (params.get("confirmTimeout") instanceof Long) {
+                confirmTimeout = (Long) params.get("confirmTimeout");
+            } else if (params.get("confirmTimeout") instanceof Integer) {
+                confirmTimeout = ((Integer) params.get("confirmTimeout")).longValue();
+            }
+            if (confirmTimeout <= 0) {
+                confirmTimeout = 10000l;
+            }
+            
+            OpflowChannelPool.ChannelInitializer producingChannelInitializer = null;
+            if (confirmEnabled) {
+                producingChannelInitializer = new OpflowChannelPool.ChannelInitializer() {
+                    @Override
+                    public Object initChannel(Channel channel) throws IOException {
+                        channel.confirmSelect();
+                        OpflowConfirmTracker tracker = new OpflowConfirmTracker(engineId + "-" + channel.getChannelNumber(),
+                                _maxOutstandingConfirms, confirmTimeout);
+                        channel.addConfirmListener(tracker);
+                        channel.addShutdownListener(tracker);
+                        return tracker;
+                    }
+                };
+            }
+            
+            if (logTracer.ready(LOG, "info")) LOG.info(logTracer
+                    .put("confirmEnabled", confirmEnabled)
+                    .put("maxOutstandingConfirms", maxOutstandingConfirms)
+                    .put("confirmTimeout", confirmTimeout)
+                    .text("Engine[${engineId}] publisher confirms: "
+                            + "enabled: ${confirmEnabled}, "
+                            + "maxOutstandingConfirms: ${maxOutstandingConfirms}, "
+                            + "confirmTimeout: ${confirmTimeout}")
+                    .stringify());
+            
+            producingChannelPool = new OpflowChannelPool(engineId, new OpflowChannelPool.ConnectionProvider() {
+                @Override
+                public Connection getConnection() throws IOException, TimeoutException {
+                    return getProducingConnection();
+                }
+            }, producingChannelInitializer, producingChannelPoolSize, producingChannelCheckoutTimeout, producingChannelAffinity, producingChannelRecycle);
+            
+            if (logTracer.ready(LOG, "info")) LOG.info(logTracer
+                    .put("producingChannelPoolSize", producingChannelPoolSize)
+                    .put("producingChannelAffinity", producingChannelAffinity)
+                    .put("producingChannelCheckoutTimeout", producingChannelCheckoutTimeout)
+                    .put("producingChannelRecycle", producingChannelRecycle)
+                    .text("Engine[${engineId}] producing channels: "
+                            + "poolSize: ${producingChannelPoolSize}, "
+                            + "affinity: ${producingChannelAffinity}, "
+                            + "checkoutTimeout: ${producingChannelCheckoutTimeout}, "
+                            + "recycle: ${producingChannelRecycle}")
+                    .stringify());
+            
+            Integer adminChannelPoolSize = null;
+            if (params.get("adminChannelPoolSize") instanceof Integer) {
+                adminChannelPoolSize = (Integer) params.get("adminChannelPoolSize");
+            }
+            if (adminChannelPoolSize == null || adminChannelPoolSize <= 0) {
+                adminChannelPoolSize = 2;
+            }
+            
+            adminChannelPool = new OpflowChannelPool(engineId + "-admin", new OpflowChannelPool.ConnectionProvider() {
+                @Override
+                public Connection getConnection() throws IOException, TimeoutException {
+                    return getAdminConnection();
+                }
+            }, adminChannelPoolSize, producingChannelCheckoutTimeout, OpflowChannelPool.AFFINITY_ROUND_ROBIN, true);
+            
+            if (logTracer.ready(LOG, "info")) LOG.info(logTracer
+                    .put("adminChannelPoolSize", adminChannelPoolSize)
+                    .text("Engine[${engineId}] admin channels: poolSize: ${adminChannelPoolSize}")
+                    .stringify());
+            
             this.assertConnection();
         } catch (IOException | URISyntaxException | KeyManagementException | NoSuchAlgorithmException | TimeoutException exception) {
             if (logTracer.ready(LOG, "error")) LOG.error(logTracer
@@ -328,7 +470,10 @@ public class OpflowEngine implements AutoCloseable {
             if (exchangeDurable == null) exchangeDurable = true;
             
             if (exchangeName != null) {
-                getProducingChannel().exchangeDeclare(exchangeName, exchangeType, exchangeDurable);
+                try (OpflowChannelPool.Lease lease = producingChannelPool.acquire()) {
+                    lease.getChannel().exchangeDeclare(exchangeName, exchangeType, exchangeDurable);
+                }
+                declaredTopology.add("exchange:" + exchangeName);
             }
             
             if (params.get("routingKey") instanceof String) {
@@ -395,21 +540,46 @@ public class OpflowEngine implements AutoCloseable {
         return applicationId;
     }
     
-    public void produce(final byte[] body, final Map<String, Object> headers) {
-        produce(body, headers, null, null);
+    public boolean isConfirmEnabled() {
+        return confirmEnabled;
+    }
+
+    public long getConfirmTimeout() {
+        return confirmTimeout;
     }
     
-    public void produce(final byte[] body, final Map<String, Object> headers, AMQP.BasicProperties.Builder propBuilder) {
-        produce(body, headers, propBuilder, null);
+    public OpflowConfirmTracker.Confirmation produce(final byte[] body, final Map<String, Object> headers) {
+        return produce(body, headers, null, null);
     }
     
-    public void produce(final byte[] body, final Map<String, Object> headers, Map<String, Object> override) {
-        produce(body, headers, null, override);
+    public OpflowConfirmTracker.Confirmation produce(final byte[] body, final Map<String, Object> headers, AMQP.BasicProperties.Builder propBuilder) {
+        return produce(body, headers, propBuilder, null);
     }
     
-    public void produce(final byte[] body, final Map<String, Object> headers, AMQP.BasicProperties.Builder propBuilder, Map<String, Object> override) {
+    public OpflowConfirmTracker.Confirmation produce(final byte[] body, final Map<String, Object> headers, Map<String, Object> override) {
+        return produce(body, headers, null, override);
+    }
+    
+    /**
+     * Publish a message to the exchange of the engine.
+     * 
+     * @return the broker confirmation of the message when confirmEnabled is
+     * true (resolved asynchronously by the ack/nack callbacks), otherwise null
+     */
+    public OpflowConfirmTracker.Confirmation produce(final byte[] body, final Map<String, Object> headers, AMQP.BasicProperties.Builder propBuilder, Map<String, Object> override) {
+        return produce(body, headers, propBuilder, override, null);
+    }
+    
+    /**
+     * @param channel publish on this channel instead of a pooled producing
+     * channel; required by the direct reply-to, whose requests must be
+     * published on the channel that consumes the replies. The message is
+     * not confirmed.
+     */
+    public OpflowConfirmTracker.Confirmation produce(final byte[] body, final Map<String, Object> headers, AMQP.BasicProperties.Builder propBuilder, Map<String, Object> override, Channel channel) {
         propBuilder = (propBuilder == null) ? new AMQP.BasicProperties.Builder() : propBuilder;
         OpflowLogTracer logProduce = null;
+        OpflowConfirmTracker.Confirmation confirmation = null;
         
         try {
             String customKey = this.routingKey;
@@ -449,11 +619,33 @@ public class OpflowEngine implements AutoCloseable {
                     .text("Request[${requestId}] - Engine[${engineId}] - produce() is invoked")
                     .stringify());
             
-            Channel _channel = getProducingChannel();
-            if (_channel == null || !_channel.isOpen()) {
-                throw new OpflowOperationException("Channel is null or has been closed");
+            if (channel != null) {
+                if (!channel.isOpen()) {
+                    throw new OpflowOperationException("Channel has been closed");
+                }
+                channel.basicPublish(this.exchangeName, customKey, propBuilder.build(), body);
+                return null;
             }
-            _channel.basicPublish(this.exchangeName, customKey, propBuilder.build(), body);
+            
+            try (OpflowChannelPool.Lease lease = producingChannelPool.acquire()) {
+                Channel _channel = lease.getChannel();
+                if (_channel == null || !_channel.isOpen()) {
+                    throw new OpflowOperationException("Channel is null or has been closed");
+                }
+                OpflowConfirmTracker tracker = null;
+                if (lease.getAttachment() instanceof OpflowConfirmTracker) {
+                    tracker = (OpflowConfirmTracker) lease.getAttachment();
+                    confirmation = tracker.register(_channel.getNextPublishSeqNo());
+                }
+                try {
+                    _channel.basicPublish(this.exchangeName, customKey, propBuilder.build(), body);
+                } catch (IOException | RuntimeException exception) {
+                    // the broker will never confirm a publish that has not been sent
+                    if (confirmation != null) tracker.cancel(confirmation);
+                    throw exception;
+                }
+            }
+            return confirmation;
         } catch (IOException exception) {
             if (logProduce != null && logProduce.ready(LOG, "error")) LOG.error(logProduce
                     .put("exceptionClass", exception.getClass().getName())
@@ -471,6 +663,127 @@ public class OpflowEngine implements AutoCloseable {
         }
     }
     
+    public int produceBatch(final List<OpflowMessage> messages, final Map<String, Object> headers) {
+        return produceBatch(messages, headers, null);
+    }
+    
+    /**
+     * Publish a list of messages back to back on one leased channel. The
+     * properties are built once, and the headers of each message are its own
+     * info map layered on the shared headers template. When confirmEnabled is
+     * true, the method waits once (bounded by confirmTimeout) for the whole batch.
+     * 
+     * @param messages the messages to be published
+     * @param headers the headers template of all of the messages
+     * @param override the overridden routingKey/applicationId
+     * @return the number of the published messages
+     * @throws OpflowOperationException if the batch could not be published or confirmed
+     */
+    public int produceBatch(final List<OpflowMessage> messages, final Map<String, Object> headers, Map<String, Object> override) {
+        if (messages == null || messages.isEmpty()) return 0;
+        
+        String customKey = this.routingKey;
+        if (override != null && override.get("routingKey") != null) {
+            customKey = (String) override.get("routingKey");
+        }
+        
+        String appId = this.applicationId;
+        if (override != null && override.get("applicationId") != null) {
+            appId = (String) override.get("applicationId");
+        }
+        
+        Map<String, Object> template = new HashMap<>();
+        if (headers != null) template.putAll(headers);
+        template.put("publishedTime", OpflowUtil.getCurrentTimeString());
+        
+        AMQP.BasicProperties baseProps = new AMQP.BasicProperties.Builder().appId(appId).build();
+        
+        final String batchId = OpflowUtil.getLogID();
+        final OpflowLogTracer logBatch = logTracer.branch("batchId", batchId);
+        if (logBatch.ready(LOG, "info")) LOG.info(logBatch
+                .put("appId", appId)
+                .put("customKey", customKey)
+                .put("batchSize", messages.size())
+                .text("Batch[${batchId}] - Engine[${engineId}] - produceBatch() is invoked with ${batchSize} messages")
+                .stringify());
+        
+        List<OpflowConfirmTracker.Confirmation> confirmations = null;
+        int count = 0;
+        try {
+            try (OpflowChannelPool.Lease lease = producingChannelPool.acquire()) {
+                Channel _channel = lease.getChannel();
+                if (_channel == null || !_channel.isOpen()) {
+                    throw new OpflowOperationException("Channel is null or has been closed");
+                }
+                OpflowConfirmTracker tracker = null;
+                if (lease.getAttachment() instanceof OpflowConfirmTracker) {
+                    tracker = (OpflowConfirmTracker) lease.getAttachment();
+                    confirmations = new ArrayList<>(messages.size());
+                }
+                for (OpflowMessage message : messages) {
+                    Map<String, Object> _headers = new HashMap<>(template);
+                    if (message.getInfo() != null) _headers.putAll(message.getInfo());
+                    if (_headers.get("requestId") == null) {
+                        _headers.put("requestId", OpflowUtil.getLogID());
+                    }
+                    OpflowConfirmTracker.Confirmation confirmation = null;
+                    if (tracker != null) {
+                        confirmation = tracker.register(_channel.getNextPublishSeqNo());
+                        confirmations.add(confirmation);
+                    }
+                    try {
+                        _channel.basicPublish(this.exchangeName, customKey, baseProps.builder().headers(_headers).build(), message.getBody());
+                    } catch (IOException | RuntimeException exception) {
+                        // the broker will never confirm a publish that has not been sent
+                        if (confirmation != null) tracker.cancel(confirmation);
+                        throw exception;
+                    }
+                    count++;
+                }
+            }
+        } catch (IOException | TimeoutException exception) {
+            if (logBatch.ready(LOG, "error")) LOG.error(logBatch
+                    .put("published", count)
+                    .put("exceptionClass", exception.getClass().getName())
+                    .put("exceptionMessage", exception.getMessage())
+                    .text("Batch[${batchId}] - produceBatch() has failed after ${published} messages")
+                    .stringify());
+            throw new OpflowOperationException(exception);
+        }
+        
+        if (confirmations != null) {
+            long deadline = System.currentTimeMillis() + confirmTimeout;
+            int nacked = 0;
+            try {
+                for (OpflowConfirmTracker.Confirmation confirmation : confirmations) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (!confirmation.await(remaining > 0 ? remaining : 0)) {
+                        if (!confirmation.isDone()) {
+                            throw new OpflowOperationException("Batch[" + batchId + "] confirms are timeout");
+                        }
+                        nacked++;
+                    }
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new OpflowOperationException("Batch[" + batchId + "] waiting for the confirms has been interrupted", ie);
+            }
+            if (nacked > 0) {
+                if (logBatch.ready(LOG, "error")) LOG.error(logBatch
+                        .put("nacked", nacked)
+                        .text("Batch[${batchId}] - produceBatch() ${nacked} messages have been nacked")
+                        .stringify());
+                throw new OpflowOperationException("Batch[" + batchId + "] " + nacked + " messages have been nacked");
+            }
+        }
+        
+        if (logBatch.ready(LOG, "info")) LOG.info(logBatch
+                .put("published", count)
+                .text("Batch[${batchId}] - produceBatch() has published ${published} messages")
+                .stringify());
+        return count;
+    }
+    
     public ConsumerInfo consume(final OpflowListener listener, final Map<String, Object> options) {
         final Map<String, Object> opts = OpflowUtil.ensureNotNull(options);
         final String _consumerId = OpflowUtil.getOptionField(opts, "consumerId", true);
@@ -489,8 +802,38 @@ public class OpflowEngine implements AutoCloseable {
             if (opts.get("prefetch") instanceof Integer) {
                 _prefetch = (Integer) opts.get("prefetch");
             }
-            if (_prefetch != null && _prefetch > 0) {
-                _channel.basicQos(_prefetch);
+            
+            final Boolean _autoAck;
+            if (opts.get("autoAck") != null && opts.get("autoAck") instanceof Boolean) {
+                _autoAck = (Boolean) opts.get("autoAck");
+            } else {
+                _autoAck = Boolean.TRUE;
+            }
+            
+            final OpflowPrefetchController _prefetchController;
+            if (OpflowPrefetchController.isConfigured(opts) && _autoAck) {
+                // the broker does not apply the prefetch to an autoAck consumer
+                if (logConsume.ready(LOG, "warn")) LOG.warn(logConsume
+                        .text("Consumer[${consumerId}].consume() - the adaptive prefetch requires autoAck=false, it is ignored")
+                        .stringify());
+            }
+            if (OpflowPrefetchController.isConfigured(opts) && !_autoAck) {
+                Long _prefetchInterval = null;
+                if (opts.get("prefetchInterval") instanceof Long) {
+                    _prefetchInterval = (Long) opts.get("prefetchInterval");
+                } else if (opts.get("prefetchInterval") instanceof Integer) {
+                    _prefetchInterval = ((Integer) opts.get("prefetchInterval")).longValue();
+                }
+                _prefetchController = new OpflowPrefetchController(_consumerId, exporter, _prefetch,
+                        (opts.get("prefetchMin") instanceof Integer) ? (Integer) opts.get("prefetchMin") : null,
+                        (opts.get("prefetchMax") instanceof Integer) ? (Integer) opts.get("prefetchMax") : null,
+                        _prefetchInterval);
+                _prefetchController.addChannel(_channel);
+            } else {
+                _prefetchController = null;
+                if (_prefetch != null && _prefetch > 0) {
+                    _channel.basicQos(_prefetch);
+                }
             }
             
             final String _queueName;
@@ -499,8 +842,12 @@ public class OpflowEngine implements AutoCloseable {
             final boolean opts_durable = !Boolean.FALSE.equals(opts.get("durable"));
             final boolean opts_exclusive = Boolean.TRUE.equals(opts.get("exclusive"));
             final boolean opts_autoDelete = Boolean.TRUE.equals(opts.get("autoDelete"));
+            final boolean opts_passive = Boolean.TRUE.equals(opts.get("passive"));
             AMQP.Queue.DeclareOk _declareOk;
-            if (opts_queueName != null) {
+            if (opts_queueName != null && opts_passive) {
+                _declareOk = _channel.queueDeclarePassive(opts_queueName);
+                _fixedQueue = true;
+            } else if (opts_queueName != null) {
                 _declareOk = _channel.queueDeclare(opts_queueName, opts_durable, opts_exclusive, opts_autoDelete, null);
                 _fixedQueue = true;
             } else {
@@ -508,20 +855,28 @@ public class OpflowEngine implements AutoCloseable {
                 _fixedQueue = false;
             }
             _queueName = _declareOk.getQueue();
+            Integer _consumerCount = null;
+            if (opts.get("consumerCount") instanceof Integer) {
+                _consumerCount = (Integer) opts.get("consumerCount");
+            }
+            // the members of the group are counted against the limit as well
+            final int _groupSize = (_consumerCount != null && _consumerCount > 1) ? _consumerCount : 1;
             final Integer _consumerLimit = (Integer) opts.get("consumerLimit");
             if (logConsume.ready(LOG, "trace")) LOG.trace(logConsume
                     .put("consumerCount", _declareOk.getConsumerCount())
+                    .put("groupSize", _groupSize)
                     .put("consumerLimit", _consumerLimit)
-                    .text("Consumer[${consumerId}].consume() - consumerCount(${consumerCount})/consumerLimit(${consumerLimit})")
+                    .text("Consumer[${consumerId}].consume() - consumerCount(${consumerCount})+groupSize(${groupSize})/consumerLimit(${consumerLimit})")
                     .stringify());
             if (_consumerLimit != null && _consumerLimit > 0) {
-                if (_declareOk.getConsumerCount() >= _consumerLimit) {
+                if (_declareOk.getConsumerCount() + _groupSize > _consumerLimit) {
                     if (logConsume.ready(LOG, "error")) LOG.error(logConsume
                             .put("consumerCount", _declareOk.getConsumerCount())
+                            .put("groupSize", _groupSize)
                             .put("consumerLimit", _consumerLimit)
                             .text("Consumer[${consumerId}].consume() - consumerCount exceed limit")
                             .stringify());
-                    String errorMessage = "consumerLimit exceed: " + _declareOk.getConsumerCount() + "/" + _consumerLimit;
+                    String errorMessage = "consumerLimit exceed: " + _declareOk.getConsumerCount() + "+" + _groupSize + "/" + _consumerLimit;
                     throw new OpflowConsumerOverLimitException(errorMessage);
                 }
             }
@@ -544,13 +899,6 @@ public class OpflowEngine implements AutoCloseable {
                 _replyToName = null;
             }
             
-            final Boolean _autoAck;
-            if (opts.get("autoAck") != null && opts.get("autoAck") instanceof Boolean) {
-                _autoAck = (Boolean) opts.get("autoAck");
-            } else {
-                _autoAck = Boolean.TRUE;
-            }
-            
             final Boolean _requeueFailure;
             if (opts.get("requeueFailure") != null && opts.get("requeueFailure") instanceof Boolean) {
                 _requeueFailure = (Boolean) opts.get("requeueFailure");
@@ -558,112 +906,51 @@ public class OpflowEngine implements AutoCloseable {
                 _requeueFailure = Boolean.FALSE;
             }
             
-            final Consumer _consumer = new DefaultConsumer(_channel) {
-                private void invokeAck(Envelope envelope, boolean success) throws IOException {
-                    if (!_autoAck) {
-                        if (success) {
-                            _channel.basicAck(envelope.getDeliveryTag(), false);
-                        } else {
-                            if (!_requeueFailure) {
-                                _channel.basicAck(envelope.getDeliveryTag(), false);
-                            } else {
-                                _channel.basicNack(envelope.getDeliveryTag(), false, true);
-                            }
-                        }
-                    }
-                }
-                @Override
-                public void handleDelivery(String consumerTag, Envelope envelope,
-                                           AMQP.BasicProperties properties, byte[] body) throws IOException {
-                    final String requestID = OpflowUtil.getRequestId(properties.getHeaders(), false);
-                    
-                    final OpflowLogTracer logRequest = logConsume.branch("requestId", requestID, new OpflowLogTracer.OmitPingLogs(properties.getHeaders()));
-                    
-                    if (logRequest != null && logRequest.ready(LOG, "info")) LOG.info(logRequest
-                            .put("appId", properties.getAppId())
-                            .put("deliveryTag", envelope.getDeliveryTag())
-                            .put("consumerTag", consumerTag)
-                            .text("Request[${requestId}] - Consumer[${consumerId}] receives a message")
-                            .stringify());
-                    
-                    if (logRequest != null && logRequest.ready(LOG, "trace")) {
-                        if (body.length <= 4096) {
-                            if (logRequest != null && logRequest.ready(LOG, "trace")) LOG.trace(logRequest
-                                    .put("bodyHead", new String(body, "UTF-8"))
-                                    .put("bodyLength", body.length)
-                                    .text("Request[${requestId}] body head (4096 bytes)")
-                                    .stringify());
-                        } else {
-                            if (logRequest != null && logRequest.ready(LOG, "trace")) LOG.trace(logRequest
-                                    .put("bodyLength", body.length)
-                                    .text("Request[${requestId}] body size too large (>4KB)")
-                                    .stringify());
-                        }
-                    }
-                    
-                    try {
-                        if (applicationId == null || applicationId.equals(properties.getAppId())) {
-                            if (logRequest != null && logRequest.ready(LOG, "trace")) LOG.trace(logRequest
-                                    .text("Request[${requestId}] invoke listener.processMessage()")
-                                    .stringify());
-                            
-                            boolean captured = listener.processMessage(body, properties, _replyToName, _channel, consumerTag);
-                            
-                            if (captured) {
-                                if (logRequest != null && logRequest.ready(LOG, "info")) LOG.info(logRequest
-                                        .text("Request[${requestId}] has finished successfully")
-                                        .stringify());
-                            } else {
-                                if (logRequest != null && logRequest.ready(LOG, "info")) LOG.info(logRequest
-                                        .text("Request[${requestId}] has not matched the criteria, skipped")
-                                        .stringify());
-                            }
-                            
-                            if (logRequest != null && logRequest.ready(LOG, "trace")) LOG.trace(logRequest
-                                    .put("deliveryTag", envelope.getDeliveryTag())
-                                    .put("consumerTag", consumerTag)
-                                    .text("Request[${requestId}] invoke ACK")
-                                    .stringify());
-                            
-                            invokeAck(envelope, true);
-                        } else {
-                            if (logRequest != null && logRequest.ready(LOG, "info")) LOG.info(logRequest
-                                    .put("applicationId", applicationId)
-                                    .text("Request[${requestId}] has been rejected, mismatched applicationId")
-                                    .stringify());
-                            invokeAck(envelope, false);
-                        }
-                    } catch (IOException ex) {
-                        // catch ALL of Error here: don't let it harm our service/close the channel
-                        if (logRequest != null && logRequest.ready(LOG, "error")) LOG.error(logRequest
-                                .put("deliveryTag", envelope.getDeliveryTag())
-                                .put("consumerTag", consumerTag)
-                                .put("exceptionClass", ex.getClass().getName())
-                                .put("exceptionMessage", ex.getMessage())
-                                .put("autoAck", _autoAck)
-                                .put("requeueFailure", _requeueFailure)
-                                .text("Request[${requestId}] has been failed. Service still alive")
-                                .stringify());
-                        invokeAck(envelope, false);
-                    }
-                }
-                
-                @Override
-                public void handleCancelOk(String consumerTag) {
-                    if (logConsume.ready(LOG, "info")) LOG.info(logConsume
-                            .put("consumerTag", consumerTag)
-                            .text("Consumer[${consumerId}].consume() - handle CancelOk event")
-                            .stringify());
-                }
-                
-                @Override
-                public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
-                    if (logConsume.ready(LOG, "info")) LOG.info(logConsume
-                            .put("consumerTag", consumerTag)
-                            .text("Consumer[${consumerId}].consume() - handle ShutdownSignal event")
-                            .stringify());
-                }
-            };
+            Integer _ackBatchSize = null;
+            if (opts.get("ackBatchSize") instanceof Integer) {
+                _ackBatchSize = (Integer) opts.get("ackBatchSize");
+            }
+            final int _ackBatch = (!_autoAck && _ackBatchSize != null && _ackBatchSize > 1) ? _ackBatchSize : 0;
+            long _ackFlushInterval = 100;
+            if (opts.get("ackFlushInterval") instanceof Long) {
+                _ackFlushInterval = (Long) opts.get("ackFlushInterval");
+            } else if (opts.get("ackFlushInterval") instanceof Integer) {
+                _ackFlushInterval = ((Integer) opts.get("ackFlushInterval")).longValue();
+            }
+            if (_ackFlushInterval <= 0) _ackFlushInterval = 100;
+            
+            final OpflowProcessingExecutor _processingExecutor;
+            final String _orderKey = (opts.get("processingOrderKey") instanceof String) ? (String) opts.get("processingOrderKey") : null;
+            if (OpflowProcessingExecutor.isConfigured(opts) && _autoAck) {
+                // an autoAck delivery would be acked while it waits in the pool, without any bound
+                if (logConsume.ready(LOG, "warn")) LOG.warn(logConsume
+                        .text("Consumer[${consumerId}].consume() - the processing executor requires autoAck=false, it is ignored")
+                        .stringify());
+                _processingExecutor = null;
+            } else if (OpflowProcessingExecutor.isConfigured(opts)) {
+                _processingExecutor = new OpflowProcessingExecutor(_consumerId,
+                        (opts.get("processingExecutor") instanceof Executor) ? (Executor) opts.get("processingExecutor") : null,
+                        (opts.get("processingPoolType") instanceof String) ? (String) opts.get("processingPoolType") : null,
+                        (opts.get("processingPoolSize") instanceof Integer) ? (Integer) opts.get("processingPoolSize") : null,
+                        _orderKey != null);
+            } else {
+                _processingExecutor = null;
+            }
+            if (_prefetchController != null && _processingExecutor != null) {
+                _prefetchController.setConcurrency(_processingExecutor.getConcurrency());
+            }
+            if (_prefetchController == null && _processingExecutor != null && (_prefetch == null || _prefetch <= 0)) {
+                // without a prefetch the broker would push the whole queue into the pool
+                _prefetch = 2 * _processingExecutor.getConcurrency();
+                _channel.basicQos(_prefetch);
+            }
+            
+            final DeliveryConsumer _consumer = new DeliveryConsumer(_channel, listener, logConsume, _replyToName, _autoAck, _requeueFailure, _prefetchController);
+            if (_ackBatch > 0) {
+                _consumer.ackCoalescer = new OpflowAckCoalescer(_consumerId, _channel, _ackBatch, _ackFlushInterval);
+            }
+            _consumer.processingExecutor = _processingExecutor;
+            _consumer.orderKey = _orderKey;
             
             final String _consumerTag = _channel.basicConsume(_queueName, _autoAck, _consumer);
             
@@ -675,6 +962,40 @@ public class OpflowEngine implements AutoCloseable {
                     .stringify());
             ConsumerInfo info = new ConsumerInfo(_connection, !_forceNewConnection, 
                     _channel, !_forceNewChannel, _queueName, _fixedQueue, _consumerId, _consumerTag);
+            info.ackCoalescer = _consumer.ackCoalescer;
+            info.processingExecutor = _processingExecutor;
+            
+            if (_groupSize > 1) {
+                // each member has its own channel, so the deliveries are dispatched concurrently
+                for (int i=1; i<_groupSize; i++) {
+                    Channel _member = _connection.createChannel();
+                    if (_prefetchController != null) {
+                        _prefetchController.addChannel(_member);
+                    } else if (_prefetch != null && _prefetch > 0) {
+                        _member.basicQos(_prefetch);
+                    }
+                    DeliveryConsumer _memberConsumer = new DeliveryConsumer(_member, listener, logConsume, _replyToName, _autoAck, _requeueFailure, _prefetchController);
+                    if (_ackBatch > 0) {
+                        _memberConsumer.ackCoalescer = new OpflowAckCoalescer(_consumerId, _member, _ackBatch, _ackFlushInterval);
+                    }
+                    _memberConsumer.processingExecutor = _processingExecutor;
+                    _memberConsumer.orderKey = _orderKey;
+                    String _memberTag = _member.basicConsume(_queueName, _autoAck, _memberConsumer);
+                    ConsumerInfo _memberInfo = new ConsumerInfo(_connection, true, _member, false, _queueName, _fixedQueue, _consumerId, _memberTag);
+                    _memberInfo.ackCoalescer = _memberConsumer.ackCoalescer;
+                    info.members.add(_memberInfo);
+                    if (logConsume.ready(LOG, "info")) LOG.info(logConsume
+                            .put("queueName", _queueName)
+                            .put("consumerTag", _memberTag)
+                            .put("channelNumber", _member.getChannelNumber())
+                            .text("Consumer[${consumerId}].consume() create member consumer[${consumerTag}]/queue[${queueName}]")
+                            .stringify());
+                }
+            }
+            if (_prefetchController != null) {
+                info.prefetchController = _prefetchController;
+                _prefetchController.start();
+            }
             if ("engine".equals(mode)) consumerInfos.add(info);
             return info;
         } catch(IOException exception) {
@@ -698,12 +1019,43 @@ public class OpflowEngine implements AutoCloseable {
         public Object handleEvent(Channel channel) throws IOException;
     }
     
+    /**
+     * The names ("queue:name", "exchange:name") of the resources that have
+     * been declared through this engine. It is cleared whenever the admin or
+     * producing connection is shutdown, so that the resources are declared
+     * again after a connection recovery.
+     */
+    public Set<String> getDeclaredTopology() {
+        return declaredTopology;
+    }
+    
+    /**
+     * Run an administrative operation on a channel leased from the shared
+     * admin connection. A channel that has been closed by the operation (e.g.
+     * a failed passive declare) is replaced on the next lease.
+     */
     public <T> T acquireChannel(Operator listener) throws IOException, TimeoutException {
+        return acquireChannel(listener, false);
+    }
+    
+    /**
+     * @param privateConnection open a one-off connection for the operation;
+     * required by the operations whose effect is bound to the connection
+     * (e.g. declaring an exclusive queue), because the resources owned by the
+     * shared admin connection would be locked for the other connections.
+     */
+    public <T> T acquireChannel(Operator listener, boolean privateConnection) throws IOException, TimeoutException {
         T output = null;
+        if (!privateConnection) {
+            try (OpflowChannelPool.Lease lease = adminChannelPool.acquire()) {
+                if (listener != null) output = (T) listener.handleEvent(lease.getChannel());
+            }
+            return output;
+        }
         Connection _connection = null;
         Channel _channel = null;
         try {
-            _connection = factory.newConnection();
+            _connection = transport.newConnection();
             _channel = _connection.createChannel();
             if (listener != null) output = (T) listener.handleEvent(_channel);
         } finally {
@@ -713,21 +1065,63 @@ public class OpflowEngine implements AutoCloseable {
         return output;
     }
     
+    /**
+     * Cancel a consumer and the members of its group. The deliveries of every
+     * member are stopped first, then the in-flight tasks of the processing
+     * executor are awaited and their acks are flushed, and only then are the
+     * channels closed, so that the messages being processed are not
+     * redelivered.
+     */
     public void cancelConsumer(OpflowEngine.ConsumerInfo consumerInfo) {
         if (consumerInfo == null) return;
         final OpflowLogTracer logCancel = logTracer.branch("consumerId", consumerInfo.getConsumerId());
+        if (logCancel.ready(LOG, "debug")) LOG.debug(logCancel
+                .put("queueName", consumerInfo.getQueueName())
+                .text("Consumer[${consumerId}].cancelConsumer() - consumer will be cancelled")
+                .stringify());
+        
+        List<ConsumerInfo> group = new ArrayList<>(consumerInfo.getMembers());
+        group.add(consumerInfo);
+        consumerInfo.getMembers().clear();
+        
+        for (ConsumerInfo member : group) {
+            try {
+                member.getChannel().basicCancel(member.getConsumerTag());
+            } catch (IOException | RuntimeException ex) {
+                if (logCancel.ready(LOG, "error")) LOG.error(logCancel
+                        .put("consumerTag", member.getConsumerTag())
+                        .put("exceptionClass", ex.getClass().getName())
+                        .put("exceptionMessage", ex.getMessage())
+                        .text("Consumer[${consumerId}].cancelConsumer() - basicCancel of consumer[${consumerTag}] has failed")
+                        .stringify());
+            }
+        }
+        
+        if (consumerInfo.getPrefetchController() != null) {
+            consumerInfo.getPrefetchController().close();
+        }
+        
+        if (consumerInfo.processingExecutor != null) {
+            consumerInfo.processingExecutor.close();
+        }
+        
+        for (ConsumerInfo member : group) {
+            if (member.ackCoalescer != null) {
+                member.ackCoalescer.close();
+            }
+        }
+        
+        if (logCancel.ready(LOG, "debug")) LOG.debug(logCancel
+                .text("Consumer[${consumerId}].cancelConsumer() - consumer has been cancelled")
+                .stringify());
+        
+        for (ConsumerInfo member : group) {
+            closeConsumer(member, logCancel);
+        }
+    }
+    
+    private void closeConsumer(OpflowEngine.ConsumerInfo consumerInfo, OpflowLogTracer logCancel) {
         try {
-            if (logCancel.ready(LOG, "debug")) LOG.debug(logCancel
-                    .put("queueName", consumerInfo.getQueueName())
-                    .text("Consumer[${consumerId}].cancelConsumer() - consumer will be cancelled")
-                    .stringify());
-
-            consumerInfo.getChannel().basicCancel(consumerInfo.getConsumerTag());
-
-            if (logCancel.ready(LOG, "debug")) LOG.debug(logCancel
-                    .text("Consumer[${consumerId}].cancelConsumer() - consumer has been cancelled")
-                    .stringify());
-
             if (!consumerInfo.isSharedConnection() || !consumerInfo.isSharedChannel()) {
                 if (consumerInfo.getChannel() != null && consumerInfo.getChannel().isOpen()) {
                     if (logCancel.ready(LOG, "debug")) LOG.debug(logCancel
@@ -762,6 +1156,222 @@ public class OpflowEngine implements AutoCloseable {
         }
     }
     
+    private class DeliveryConsumer extends DefaultConsumer {
+        private final Channel channel;
+        private final OpflowListener listener;
+        private final OpflowLogTracer logConsume;
+        private final String replyToName;
+        private final boolean autoAck;
+        private final boolean requeueFailure;
+        private final OpflowPrefetchController prefetchController;
+        private OpflowAckCoalescer ackCoalescer;
+        private OpflowProcessingExecutor processingExecutor;
+        private String orderKey;
+        
+        DeliveryConsumer(Channel channel, OpflowListener listener, OpflowLogTracer logConsume,
+                String replyToName, boolean autoAck, boolean requeueFailure,
+                OpflowPrefetchController prefetchController) {
+            super(channel);
+            this.channel = channel;
+            this.listener = listener;
+            this.logConsume = logConsume;
+            this.replyToName = replyToName;
+            this.autoAck = autoAck;
+            this.requeueFailure = requeueFailure;
+            this.prefetchController = prefetchController;
+        }
+        
+        @Override
+        public void handleDelivery(final String consumerTag, final Envelope envelope,
+                                   final AMQP.BasicProperties properties, final byte[] body) throws IOException {
+            if (!autoAck && ackCoalescer != null) {
+                ackCoalescer.register(envelope.getDeliveryTag());
+            }
+            if (processingExecutor == null) {
+                process(consumerTag, envelope, properties, body);
+                return;
+            }
+            String orderValue = null;
+            if (orderKey != null && properties.getHeaders() != null && properties.getHeaders().get(orderKey) != null) {
+                orderValue = properties.getHeaders().get(orderKey).toString();
+            }
+            try {
+                processingExecutor.execute(orderValue, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            // the ack is sent on the channel of this consumer, which is thread-safe
+                            process(consumerTag, envelope, properties, body);
+                        } catch (Throwable exception) {
+                            if (logConsume.ready(LOG, "error")) LOG.error(logConsume
+                                    .put("deliveryTag", envelope.getDeliveryTag())
+                                    .put("exceptionClass", exception.getClass().getName())
+                                    .put("exceptionMessage", exception.getMessage())
+                                    .text("Consumer[${consumerId}] asynchronous processing of deliveryTag[${deliveryTag}] has failed")
+                                    .stringify());
+                            // the channel is not closed by amqp-client here, the delivery must be settled
+                            settleFailure(envelope);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException exception) {
+                if (logConsume.ready(LOG, "warn")) LOG.warn(logConsume
+                        .put("deliveryTag", envelope.getDeliveryTag())
+                        .text("Consumer[${consumerId}] processing executor has rejected deliveryTag[${deliveryTag}], requeue it")
+                        .stringify());
+                if (!autoAck) {
+                    if (ackCoalescer != null) {
+                        ackCoalescer.nack(envelope.getDeliveryTag(), true);
+                    } else {
+                        channel.basicNack(envelope.getDeliveryTag(), false, true);
+                    }
+                }
+            }
+        }
+        
+        private void settleFailure(Envelope envelope) {
+            // a failure after the delivery has been settled (i.e. in the ack itself) is not settled twice
+            if (!autoAck && ackCoalescer != null && !ackCoalescer.isOutstanding(envelope.getDeliveryTag())) return;
+            try {
+                invokeAck(envelope, false);
+            } catch (IOException | RuntimeException exception) {
+                if (logConsume.ready(LOG, "error")) LOG.error(logConsume
+                        .put("deliveryTag", envelope.getDeliveryTag())
+                        .put("exceptionClass", exception.getClass().getName())
+                        .put("exceptionMessage", exception.getMessage())
+                        .text("Consumer[${consumerId}] deliveryTag[${deliveryTag}] could not be settled")
+                        .stringify());
+            }
+        }
+        
+        private void process(String consumerTag, Envelope envelope,
+                                   AMQP.BasicProperties properties, byte[] body) throws IOException {
+            if (prefetchController == null) {
+                dispatch(consumerTag, envelope, properties, body);
+                return;
+            }
+            long started = System.nanoTime();
+            prefetchController.recordStarted(started);
+            try {
+                dispatch(consumerTag, envelope, properties, body);
+            } finally {
+                prefetchController.recordFinished(started, System.nanoTime());
+            }
+        }
+        
+        private void invokeAck(Envelope envelope, boolean success) throws IOException {
+            if (!autoAck && ackCoalescer != null) {
+                if (success || !requeueFailure) {
+                    ackCoalescer.ack(envelope.getDeliveryTag());
+                } else {
+                    ackCoalescer.nack(envelope.getDeliveryTag(), true);
+                }
+                return;
+            }
+            if (!autoAck) {
+                if (success) {
+                    channel.basicAck(envelope.getDeliveryTag(), false);
+                } else {
+                    if (!requeueFailure) {
+                        channel.basicAck(envelope.getDeliveryTag(), false);
+                    } else {
+                        channel.basicNack(envelope.getDeliveryTag(), false, true);
+                    }
+                }
+            }
+        }
+        private void dispatch(String consumerTag, Envelope envelope,
+                                   AMQP.BasicProperties properties, byte[] body) throws IOException {
+            final String requestID = OpflowUtil.getRequestId(properties.getHeaders(), false);
+            
+            final OpflowLogTracer logRequest = logConsume.branch("requestId", requestID, new OpflowLogTracer.OmitPingLogs(properties.getHeaders()));
+            
+            if (logRequest != null && logRequest.ready(LOG, "info")) LOG.info(logRequest
+                    .put("appId", properties.getAppId())
+                    .put("deliveryTag", envelope.getDeliveryTag())
+                    .put("consumerTag", consumerTag)
+                    .text("Request[${requestId}] - Consumer[${consumerId}] receives a message")
+                    .stringify());
+            
+            if (logRequest != null && logRequest.ready(LOG, "trace")) {
+                if (body.length <= 4096) {
+                    if (logRequest != null && logRequest.ready(LOG, "trace")) LOG.trace(logRequest
+                            .put("bodyHead", new String(body, "UTF-8"))
+                            .put("bodyLength", body.length)
+                            .text("Request[${requestId}] body head (4096 bytes)")
+                            .stringify());
+                } else {
+                    if (logRequest != null && logRequest.ready(LOG, "trace")) LOG.trace(logRequest
+                            .put("bodyLength", body.length)
+                            .text("Request[${requestId}] body size too large (>4KB)")
+                            .stringify());
+                }
+            }
+            
+            try {
+                if (applicationId == null || applicationId.equals(properties.getAppId())) {
+                    if (logRequest != null && logRequest.ready(LOG, "trace")) LOG.trace(logRequest
+                            .text("Request[${requestId}] invoke listener.processMessage()")
+                            .stringify());
+                    
+                    boolean captured = listener.processMessage(body, properties, replyToName, channel, consumerTag);
+                    
+                    if (captured) {
+                        if (logRequest != null && logRequest.ready(LOG, "info")) LOG.info(logRequest
+                                .text("Request[${requestId}] has finished successfully")
+                                .stringify());
+                    } else {
+                        if (logRequest != null && logRequest.ready(LOG, "info")) LOG.info(logRequest
+                                .text("Request[${requestId}] has not matched the criteria, skipped")
+                                .stringify());
+                    }
+                    
+                    if (logRequest != null && logRequest.ready(LOG, "trace")) LOG.trace(logRequest
+                            .put("deliveryTag", envelope.getDeliveryTag())
+                            .put("consumerTag", consumerTag)
+                            .text("Request[${requestId}] invoke ACK")
+                            .stringify());
+                    
+                    invokeAck(envelope, true);
+                } else {
+                    if (logRequest != null && logRequest.ready(LOG, "info")) LOG.info(logRequest
+                            .put("applicationId", applicationId)
+                            .text("Request[${requestId}] has been rejected, mismatched applicationId")
+                            .stringify());
+                    invokeAck(envelope, false);
+                }
+            } catch (IOException ex) {
+                // catch ALL of Error here: don't let it harm our service/close the channel
+                if (logRequest != null && logRequest.ready(LOG, "error")) LOG.error(logRequest
+                        .put("deliveryTag", envelope.getDeliveryTag())
+                        .put("consumerTag", consumerTag)
+                        .put("exceptionClass", ex.getClass().getName())
+                        .put("exceptionMessage", ex.getMessage())
+                        .put("autoAck", autoAck)
+                        .put("requeueFailure", requeueFailure)
+                        .text("Request[${requestId}] has been failed. Service still alive")
+                        .stringify());
+                invokeAck(envelope, false);
+            }
+        }
+        
+        @Override
+        public void handleCancelOk(String consumerTag) {
+            if (logConsume.ready(LOG, "info")) LOG.info(logConsume
+                    .put("consumerTag", consumerTag)
+                    .text("Consumer[${consumerId}].consume() - handle CancelOk event")
+                    .stringify());
+        }
+        
+        @Override
+        public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+            if (logConsume.ready(LOG, "info")) LOG.info(logConsume
+                    .put("consumerTag", consumerTag)
+                    .text("Consumer[${consumerId}].consume() - handle ShutdownSignal event")
+                    .stringify());
+        }
+    }
+    
     public class ConsumerInfo {
         private final Connection connection;
         private final boolean sharedConnection;
@@ -771,6 +1381,10 @@ public class OpflowEngine implements AutoCloseable {
         private final boolean fixedQueue;
         private final String consumerId;
         private final String consumerTag;
+        private final List<ConsumerInfo> members = new LinkedList<>();
+        private OpflowPrefetchController prefetchController;
+        private OpflowAckCoalescer ackCoalescer;
+        private OpflowProcessingExecutor processingExecutor;
         
         public ConsumerInfo(
                 Connection connection,
@@ -823,6 +1437,18 @@ public class OpflowEngine implements AutoCloseable {
         public String getConsumerTag() {
             return consumerTag;
         }
+        
+        /**
+         * @return the additional consumers (on their own channels) of the
+         * same queue, which are created by the consumerCount option
+         */
+        public List<ConsumerInfo> getMembers() {
+            return members;
+        }
+        
+        public OpflowPrefetchController getPrefetchController() {
+            return prefetchController;
+        }
     }
     
     public static class State {
@@ -869,14 +1495,14 @@ public class OpflowEngine implements AutoCloseable {
     public void close() {
         try {
             if (logTracer.ready(LOG, "info")) LOG.info(logTracer
-                .text("Engine[${engineId}].close() - close producingChannel, producingConnection")
+                .text("Engine[${engineId}].close() - close producingChannels, producingConnection")
                 .stringify());
-            if (producingChannel != null && producingChannel.isOpen()) {
+            if (producingChannelPool != null) {
                 if (logTracer.ready(LOG, "info")) LOG.info(logTracer
                         .tags("sharedProducingChannelClosed")
-                        .text("Engine[${engineId}].close() shared producingChannel is closing")
+                        .text("Engine[${engineId}].close() shared producingChannels are closing")
                         .stringify());
-                producingChannel.close();
+                producingChannelPool.close();
             }
             if (producingConnection != null && producingConnection.isOpen()) {
                 if (logTracer.ready(LOG, "info")) LOG.info(logTracer
@@ -885,6 +1511,16 @@ public class OpflowEngine implements AutoCloseable {
                         .stringify());
                 producingConnection.close();
             }
+            if (adminChannelPool != null) {
+                adminChannelPool.close();
+            }
+            if (adminConnection != null && adminConnection.isOpen()) {
+                if (logTracer.ready(LOG, "info")) LOG.info(logTracer
+                        .tags("sharedAdminConnectionClosed")
+                        .text("Engine[${engineId}].close() shared adminConnection is closing")
+                        .stringify());
+                adminConnection.close();
+            }
             
             if ("engine".equals(mode)) {
                 if (logTracer.ready(LOG, "info")) LOG.info(logTracer
@@ -937,9 +1573,9 @@ public class OpflowEngine implements AutoCloseable {
         });
     }
     
-    private Connection getProducingConnection() throws IOException, TimeoutException {
+    private synchronized Connection getProducingConnection() throws IOException, TimeoutException {
         if (producingConnection == null || !producingConnection.isOpen()) {
-            producingConnection = factory.newConnection();
+            producingConnection = transport.newConnection();
             producingConnection.setId(OpflowUtil.getLogID());
             producingConnection.addShutdownListener(new ShutdownListener() {
                 @Override
@@ -948,6 +1584,7 @@ public class OpflowEngine implements AutoCloseable {
                             .put("connectionId", producingConnection.getId())
                             .text("Engine[${engineId}] producingConnection[${connectionId}] has been shutdown")
                             .stringify(true));
+                    declaredTopology.clear();
                 }
             });
             if (logTracer.ready(LOG, "info")) LOG.info(logTracer
@@ -955,30 +1592,36 @@ public class OpflowEngine implements AutoCloseable {
                     .put("connectionId", producingConnection.getId())
                     .text("Engine[${engineId}]shared producingConnection[${connectionId}] is created")
                     .stringify(true));
-            exporter.incEngineConnectionGauge(factory, "producing");
+            exporter.incEngineConnectionGauge(transport, "producing");
         }
         return producingConnection;
     }
     
-    private Channel getProducingChannel() throws IOException, TimeoutException {
-        if (producingChannel == null || !producingChannel.isOpen()) {
-            producingChannel = getProducingConnection().createChannel();
-            producingChannel.addShutdownListener(new ShutdownListener() {
+    private synchronized Connection getAdminConnection() throws IOException, TimeoutException {
+        if (adminConnection == null || !adminConnection.isOpen()) {
+            final Connection _connection = transport.newConnection();
+            _connection.setId(OpflowUtil.getLogID());
+            _connection.addShutdownListener(new ShutdownListener() {
                 @Override
                 public void shutdownCompleted(ShutdownSignalException sse) {
                     if (logTracer.ready(LOG, "info")) LOG.info(logTracer
-                            .put("channelNumber", producingChannel.getChannelNumber())
-                            .text("Engine[${engineId}] producingChannel[${channelNumber}] has been shutdown")
-                            .stringify());
+                            .put("connectionId", _connection.getId())
+                            .text("Engine[${engineId}] adminConnection[${connectionId}] has been shutdown")
+                            .stringify(true));
+                    // the broker may have lost the non-durable resources, declare them again
+                    declaredTopology.clear();
+                    exporter.decEngineConnectionGauge(transport, "admin");
                 }
             });
+            adminConnection = _connection;
             if (logTracer.ready(LOG, "info")) LOG.info(logTracer
-                    .tags("sharedProducingChannelCreated")
-                    .put("channelNumber", producingChannel.getChannelNumber())
-                    .text("Engine[${engineId}] shared producingChannel[${channelNumber}] is created")
-                    .stringify());
+                    .tags("sharedAdminConnectionCreated")
+                    .put("connectionId", adminConnection.getId())
+                    .text("Engine[${engineId}] shared adminConnection[${connectionId}] is created")
+                    .stringify(true));
+            exporter.incEngineConnectionGauge(transport, "admin");
         }
-        return producingChannel;
+        return adminConnection;
     }
     
     private Connection getConsumingConnection(boolean forceNewConnection) throws IOException, TimeoutException {
@@ -987,10 +1630,10 @@ public class OpflowEngine implements AutoCloseable {
                     .tags("privateConsumingConnectionCreated")
                     .text("Engine[${engineId}] private consumingConnection is created")
                     .stringify());
-            return factory.newConnection();
+            return transport.newConnection();
         }
         if (consumingConnection == null || !consumingConnection.isOpen()) {
-            consumingConnection = factory.newConnection();
+            consumingConnection = transport.newConnection();
             consumingConnection.setId(OpflowUtil.getLogID());
             consumingConnection.addShutdownListener(new ShutdownListener() {
                 @Override
@@ -1005,7 +1648,7 @@ public class OpflowEngine implements AutoCloseable {
                     .tags("sharedConsumingConnectionCreated")
                     .text("Engine[${engineId}] shared consumingConnection is created")
                     .stringify(true));
-            exporter.incEngineConnectionGauge(factory, "consuming");
+            exporter.incEngineConnectionGauge(transport, "consuming");
         }
         return consumingConnection;
     }
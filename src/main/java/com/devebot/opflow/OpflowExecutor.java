@@ -5,6 +5,9 @@ import com.devebot.opflow.exception.OpflowOperationException;
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeoutException;
 
 /**
@@ -27,6 +30,7 @@ public class OpflowExecutor {
             if (durable == null) durable = true;
             if (exclusive == null) exclusive = false;
             if (autoDelete == null) autoDelete = false;
+            if (queueName == null || engine.getDeclaredTopology().contains(queueKey(queueName))) return;
             declareQueue(queueName, durable, exclusive, autoDelete);
         } catch (IOException | TimeoutException ioe) {
             throw new OpflowBootstrapException(ioe);
@@ -56,23 +60,33 @@ public class OpflowExecutor {
         }
     }
     
+    /**
+     * Declare the queue in one round-trip in the common case; the passive
+     * declare is only used when the queue exists with different arguments
+     * (the active declare fails with PRECONDITION_FAILED).
+     */
     private AMQP.Queue.DeclareOk declareQueue(final String queueName, final boolean durable, final boolean exclusive, final boolean autoDelete) throws IOException, TimeoutException {
         if (queueName == null) return null;
+        AMQP.Queue.DeclareOk result;
         try {
-            return engine.acquireChannel(new OpflowEngine.Operator() {
+            // an exclusive queue must not be owned by the shared admin connection
+            result = engine.acquireChannel(new OpflowEngine.Operator() {
                 @Override
                 public AMQP.Queue.DeclareOk handleEvent(Channel _channel) throws IOException {
-                    return _channel.queueDeclarePassive(queueName);
+                    return _channel.queueDeclare(queueName, durable, exclusive, autoDelete, null);
                 }
-            });
+            }, exclusive);
         } catch (IOException e1) {
-            return engine.acquireChannel(new OpflowEngine.Operator() {
+            result = engine.acquireChannel(new OpflowEngine.Operator() {
                 @Override
                 public AMQP.Queue.DeclareOk handleEvent(Channel _channel) throws IOException {
-                    return _channel.queueDeclare(queueName, durable, exclusive, autoDelete, null);
+                    return _channel.queueDeclarePassive(queueName);
                 }
             });
         }
+        // the exclusive queue is removed together with its private connection
+        if (!exclusive) engine.getDeclaredTopology().add(queueKey(queueName));
+        return result;
     }
     
     public AMQP.Queue.PurgeOk purgeQueue(final String queueName) {
@@ -91,6 +105,7 @@ public class OpflowExecutor {
     
     public AMQP.Queue.DeleteOk deleteQueue(final String queueName) {
         try {
+            engine.getDeclaredTopology().remove(queueKey(queueName));
             return engine.acquireChannel(new OpflowEngine.Operator() {
                 @Override
                 public Object handleEvent(Channel channel) throws IOException {
@@ -113,26 +128,76 @@ public class OpflowExecutor {
     private AMQP.Exchange.DeclareOk declareExchange(final String exchangeName, final String exchangeType)
             throws IOException, TimeoutException {
         if (exchangeName == null) return null;
+        final String _type = (exchangeType != null) ? exchangeType : "direct";
+        AMQP.Exchange.DeclareOk result;
         try {
-            return engine.acquireChannel(new OpflowEngine.Operator() {
+            result = engine.acquireChannel(new OpflowEngine.Operator() {
                 @Override
                 public AMQP.Exchange.DeclareOk handleEvent(Channel _channel) throws IOException {
-                    return _channel.exchangeDeclarePassive(exchangeName);
+                    return _channel.exchangeDeclare(exchangeName, _type, true, false, null);
                 }
             });
         } catch (IOException e1) {
-            final String _type = (exchangeType != null) ? exchangeType : "direct";
-            return engine.acquireChannel(new OpflowEngine.Operator() {
+            result = engine.acquireChannel(new OpflowEngine.Operator() {
                 @Override
                 public AMQP.Exchange.DeclareOk handleEvent(Channel _channel) throws IOException {
-                    return _channel.exchangeDeclare(exchangeName, _type, true, false, null);
+                    return _channel.exchangeDeclarePassive(exchangeName);
                 }
             });
         }
+        engine.getDeclaredTopology().add(exchangeKey(exchangeName));
+        return result;
+    }
+    
+    /**
+     * Declare all of the exchanges and queues of a component on one channel.
+     * The resources that have already been declared through the engine are
+     * skipped. If a declare fails (and the broker closes the channel), the
+     * remaining resources are declared one by one.
+     * 
+     * @param topology the exchanges and queues to be declared
+     * @throws OpflowBootstrapException if a resource could not be declared
+     */
+    public void declareTopology(final Topology topology) throws OpflowBootstrapException {
+        if (topology == null) return;
+        final Set<String> declared = engine.getDeclaredTopology();
+        try {
+            try {
+                engine.acquireChannel(new OpflowEngine.Operator() {
+                    @Override
+                    public Object handleEvent(Channel _channel) throws IOException {
+                        for (ExchangeSpec spec : topology.exchanges) {
+                            if (declared.contains(exchangeKey(spec.name))) continue;
+                            _channel.exchangeDeclare(spec.name, spec.type, true, false, null);
+                            declared.add(exchangeKey(spec.name));
+                        }
+                        for (QueueSpec spec : topology.queues) {
+                            if (spec.exclusive || declared.contains(queueKey(spec.name))) continue;
+                            _channel.queueDeclare(spec.name, spec.durable, false, spec.autoDelete, null);
+                            declared.add(queueKey(spec.name));
+                        }
+                        return null;
+                    }
+                });
+            } catch (IOException e1) {
+                // the channel has been closed by the broker, continue with the one by one declares
+            }
+            for (ExchangeSpec spec : topology.exchanges) {
+                if (declared.contains(exchangeKey(spec.name))) continue;
+                declareExchange(spec.name, spec.type);
+            }
+            for (QueueSpec spec : topology.queues) {
+                if (declared.contains(queueKey(spec.name))) continue;
+                declareQueue(spec.name, spec.durable, spec.exclusive, spec.autoDelete);
+            }
+        } catch (IOException | TimeoutException exception) {
+            throw new OpflowBootstrapException(exception);
+        }
     }
     
     public AMQP.Exchange.DeleteOk deleteExchange(final String exchangeName) {
         try {
+            engine.getDeclaredTopology().remove(exchangeKey(exchangeName));
             return engine.acquireChannel(new OpflowEngine.Operator() {
                 @Override
                 public Object handleEvent(Channel channel) throws IOException {
@@ -143,4 +208,62 @@ public class OpflowExecutor {
             throw new OpflowOperationException(exception);
         }
     }
+    
+    private static String queueKey(String queueName) {
+        return "queue:" + queueName;
+    }
+    
+    private static String exchangeKey(String exchangeName) {
+        return "exchange:" + exchangeName;
+    }
+    
+    public static class Topology {
+        private final List<ExchangeSpec> exchanges = new ArrayList<>();
+        private final List<QueueSpec> queues = new ArrayList<>();
+        
+        public Topology exchange(String exchangeName, String exchangeType) {
+            if (exchangeName != null) {
+                exchanges.add(new ExchangeSpec(exchangeName, (exchangeType != null) ? exchangeType : "direct"));
+            }
+            return this;
+        }
+        
+        public Topology queue(String queueName) {
+            return queue(queueName, null, null, null);
+        }
+        
+        public Topology queue(String queueName, Boolean durable, Boolean exclusive, Boolean autoDelete) {
+            if (queueName != null) {
+                queues.add(new QueueSpec(queueName,
+                        (durable == null) ? true : durable,
+                        (exclusive == null) ? false : exclusive,
+                        (autoDelete == null) ? false : autoDelete));
+            }
+            return this;
+        }
+    }
+    
+    private static class ExchangeSpec {
+        private final String name;
+        private final String type;
+        
+        ExchangeSpec(String name, String type) {
+            this.name = name;
+            this.type = type;
+        }
+    }
+    
+    private static class QueueSpec {
+        private final String name;
+        private final boolean durable;
+        private final boolean exclusive;
+        private final boolean autoDelete;
+        
+        QueueSpec(String name, boolean durable, boolean exclusive, boolean autoDelete) {
+            this.name = name;
+            this.durable = durable;
+            this.exclusive = exclusive;
+            this.autoDelete = autoDelete;
+        }
+    }
 }
@@ -3,10 +3,10 @@ package com.devebot.opflow;
 import com.devebot.opflow.exception.OpflowBootstrapException;
 import com.devebot.opflow.exception.OpflowOperationException;
 import com.devebot.opflow.supports.OpflowEnvtool;
-import com.rabbitmq.client.ConnectionFactory;
 import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.Counter;
 import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
 import io.prometheus.client.exporter.HTTPServer;
 import io.prometheus.client.exporter.PushGateway;
 import io.prometheus.client.hotspot.DefaultExports;
@@ -105,13 +105,13 @@ public class OpflowExporter {
         return engineConnectionGauge;
     }
     
-    public void incEngineConnectionGauge(ConnectionFactory factory, String connectionType) {
-        assertEngineConnectionGauge().labels(factory.getHost(), String.valueOf(factory.getPort()), factory.getVirtualHost(), connectionType).inc();
+    public void incEngineConnectionGauge(OpflowTransport transport, String connectionType) {
+        assertEngineConnectionGauge().labels(transport.getHost(), String.valueOf(transport.getPort()), transport.getVirtualHost(), connectionType).inc();
         finish(DEFAULT_PROM_PUSHGATEWAY_JOBNAME);
     }
     
-    public void decEngineConnectionGauge(ConnectionFactory factory, String connectionType) {
-        assertEngineConnectionGauge().labels(factory.getHost(), String.valueOf(factory.getPort()), factory.getVirtualHost(), connectionType).dec();
+    public void decEngineConnectionGauge(OpflowTransport transport, String connectionType) {
+        assertEngineConnectionGauge().labels(transport.getHost(), String.valueOf(transport.getPort()), transport.getVirtualHost(), connectionType).dec();
         finish(DEFAULT_PROM_PUSHGATEWAY_JOBNAME);
     }
 
@@ -179,6 +179,124 @@ public class OpflowExporter {
         finish(DEFAULT_PROM_PUSHGATEWAY_JOBNAME);
     }
     
+    private Histogram rpcLatencyHistogram;
+    
+    private Histogram assertRpcLatencyHistogram() {
+        if (rpcLatencyHistogram == null) {
+            Histogram.Builder builder = Histogram.build()
+                .name("opflow_rpc_latency_seconds")
+                .help("The latencies of the RPC invocations: round_trip (rpc_master), queue_wait and processing (rpc_worker)")
+                .labelNames("module_name", "engineId", "routineId", "stage")
+                .buckets(0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60);
+            if (pushGateway != null) {
+                rpcLatencyHistogram = builder.register(pushRegistry);
+            } else {
+                rpcLatencyHistogram = builder.register();
+            }
+        }
+        return rpcLatencyHistogram;
+    }
+    
+    /**
+     * Record a latency (the histogram buckets are striped counters, so the
+     * observation does not lock). The quantiles (p50/p99/p999) are computed by
+     * histogram_quantile() on the Prometheus side.
+     * 
+     * @param nanos the latency in nanoseconds
+     */
+    public void observeRpcLatency(String module_name, String engineId, String routineId, String stage, long nanos) {
+        if (nanos < 0) return;
+        assertRpcLatencyHistogram().labels(module_name, engineId, routineId, stage).observe(nanos / 1e9);
+        finish(DEFAULT_PROM_PUSHGATEWAY_JOBNAME);
+    }
+    
+    private Counter rpcDroppedRequestCounter;
+    
+    private Counter assertRpcDroppedRequestCounter() {
+        if (rpcDroppedRequestCounter == null) {
+            Counter.Builder builder = Counter.build()
+                .name("opflow_rpc_dropped_request_total")
+                .help("The total of the RPC requests that have been dropped without being processed")
+                .labelNames("module_name", "engineId", "routineId", "reason");
+            if (pushGateway != null) {
+                rpcDroppedRequestCounter = builder.register(pushRegistry);
+            } else {
+                rpcDroppedRequestCounter = builder.register();
+            }
+        }
+        return rpcDroppedRequestCounter;
+    }
+    
+    public void incRpcDroppedRequest(String module_name, String engineId, String routineId, String reason) {
+        assertRpcDroppedRequestCounter().labels(module_name, engineId, routineId, reason).inc();
+        finish(DEFAULT_PROM_PUSHGATEWAY_JOBNAME);
+    }
+    
+    private Gauge consumerPrefetchGauge;
+    
+    private Gauge assertConsumerPrefetchGauge() {
+        if (consumerPrefetchGauge == null) {
+            Gauge.Builder builder = Gauge.build()
+            .name("opflow_consumer_prefetch")
+            .help("The current prefetch of the adaptive consumers.")
+            .labelNames("consumer_id");
+            if (pushGateway != null) {
+                consumerPrefetchGauge = builder.register(pushRegistry);
+            } else {
+                consumerPrefetchGauge = builder.register();
+            }
+        }
+        return consumerPrefetchGauge;
+    }
+    
+    public void setConsumerPrefetch(String consumerId, int prefetch) {
+        assertConsumerPrefetchGauge().labels(consumerId).set(prefetch);
+        finish(DEFAULT_PROM_PUSHGATEWAY_JOBNAME);
+    }
+    
+    private Gauge consumerPrefetchEstimateGauge;
+    
+    private Gauge assertConsumerPrefetchEstimateGauge() {
+        if (consumerPrefetchEstimateGauge == null) {
+            Gauge.Builder builder = Gauge.build()
+            .name("opflow_consumer_prefetch_estimate")
+            .help("The processing time and round-trip estimates of the adaptive consumers.")
+            .labelNames("consumer_id", "estimate");
+            if (pushGateway != null) {
+                consumerPrefetchEstimateGauge = builder.register(pushRegistry);
+            } else {
+                consumerPrefetchEstimateGauge = builder.register();
+            }
+        }
+        return consumerPrefetchEstimateGauge;
+    }
+    
+    public void setConsumerPrefetchEstimate(String consumerId, String estimate, double value) {
+        assertConsumerPrefetchEstimateGauge().labels(consumerId, estimate).set(value);
+    }
+    
+    private Counter consumerPrefetchAdjustmentCounter;
+    
+    private Counter assertConsumerPrefetchAdjustmentCounter() {
+        if (consumerPrefetchAdjustmentCounter == null) {
+            Counter.Builder builder = Counter.build()
+                .name("opflow_consumer_prefetch_adjustment_total")
+                .help("The total of the prefetch adjustments of the adaptive consumers")
+                .labelNames("consumer_id", "direction");
+            if (pushGateway != null) {
+                consumerPrefetchAdjustmentCounter = builder.register(pushRegistry);
+            } else {
+                consumerPrefetchAdjustmentCounter = builder.register();
+            }
+        }
+        return consumerPrefetchAdjustmentCounter;
+    }
+    
+    public void incConsumerPrefetchAdjustment(String consumerId, String direction) {
+        assertConsumerPrefetchAdjustmentCounter().labels(consumerId, direction).inc();
+        finish(DEFAULT_PROM_PUSHGATEWAY_JOBNAME);
+    }
+    
     private static String getExporterPort() {
         String port1 = OpflowEnvtool.instance.getEnvironVariable(DEFAULT_PROM_EXPORTER_PORT_ENV, null);
         String port2 = OpflowEnvtool.instance.getSystemProperty(DEFAULT_PROM_EXPORTER_PORT_KEY, port1);
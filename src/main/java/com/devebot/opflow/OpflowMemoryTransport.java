@@ -0,0 +1,891 @@
+package com.devebot.opflow;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.client.impl.AMQImpl;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A broker living in the JVM, for the benchmarks and the co-located
+ * deployments that do not need RabbitMQ. It supports the default, direct,
+ * topic and fanout exchanges, the exclusive and auto-delete queues, the
+ * per-channel prefetch limit, the manual/multiple acks, the requeue of the
+ * unacked messages of a closed channel, the publisher confirms and the direct
+ * reply-to pseudo-queue (amq.rabbitmq.reply-to). The
+ * deliveries of a channel are dispatched in order on its own thread, as the
+ * AMQP client does. The engines that use the same virtualHost share a broker.
+ *
+ * @author drupalex
+ */
+public class OpflowMemoryTransport implements OpflowTransport {
+    private final static Logger LOG = LoggerFactory.getLogger(OpflowMemoryTransport.class);
+    private final static Map<String, OpflowMemoryTransport> INSTANCES = new ConcurrentHashMap<>();
+    private final static String DIRECT_REPLY_TO = "amq.rabbitmq.reply-to";
+
+    public static OpflowMemoryTransport getInstance(String virtualHost) {
+        String _virtualHost = (virtualHost != null) ? virtualHost : "/";
+        synchronized (INSTANCES) {
+            OpflowMemoryTransport instance = INSTANCES.get(_virtualHost);
+            if (instance == null) {
+                INSTANCES.put(_virtualHost, instance = new OpflowMemoryTransport(_virtualHost));
+            }
+            return instance;
+        }
+    }
+
+    private final OpflowLogTracer logTracer;
+    private final String virtualHost;
+    private final Map<String, Exchange> exchanges = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Queue> queues = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Subscription> directReplies = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    public OpflowMemoryTransport(String virtualHost) {
+        this.virtualHost = virtualHost;
+        this.logTracer = OpflowLogTracer.ROOT.branch("virtualHost", virtualHost);
+        if (logTracer.ready(LOG, "info")) LOG.info(logTracer
+                .text("MemoryTransport[${virtualHost}] has been created")
+                .stringify());
+    }
+
+    @Override
+    public Connection newConnection() throws IOException, TimeoutException {
+        return new MemoryConnection().proxy;
+    }
+
+    @Override
+    public String getHost() {
+        return "memory";
+    }
+
+    @Override
+    public int getPort() {
+        return 0;
+    }
+
+    @Override
+    public String getVirtualHost() {
+        return virtualHost;
+    }
+
+    private static class Message {
+        private final String exchange;
+        private final String routingKey;
+        private final AMQP.BasicProperties properties;
+        private final byte[] body;
+        private final boolean redeliver;
+
+        Message(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body, boolean redeliver) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.properties = properties;
+            this.body = body;
+            this.redeliver = redeliver;
+        }
+
+        Message redelivered() {
+            return new Message(exchange, routingKey, properties, body, true);
+        }
+    }
+
+    private static class Binding {
+        private final String queueName;
+        private final String key;
+
+        Binding(String queueName, String key) {
+            this.queueName = queueName;
+            this.key = key;
+        }
+    }
+
+    private static class Exchange {
+        private final String name;
+        private final String type;
+        private final List<Binding> bindings = new CopyOnWriteArrayList<>();
+
+        Exchange(String name, String type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        boolean matches(Binding binding, String routingKey) {
+            switch (type) {
+                case "fanout":
+                    return true;
+                case "topic":
+                    return matchTopic(binding.key.split("\\.", -1), 0, routingKey.split("\\.", -1), 0);
+                default:
+                    return binding.key.equals(routingKey);
+            }
+        }
+
+        static boolean matchTopic(String[] pattern, int i, String[] words, int j) {
+            if (i == pattern.length) return j == words.length;
+            if ("#".equals(pattern[i])) {
+                for (int n=j; n<=words.length; n++) {
+                    if (matchTopic(pattern, i+1, words, n)) return true;
+                }
+                return false;
+            }
+            if (j == words.length) return false;
+            if ("*".equals(pattern[i]) || pattern[i].equals(words[j])) {
+                return matchTopic(pattern, i+1, words, j+1);
+            }
+            return false;
+        }
+    }
+
+    private static class Subscription {
+        private final MemoryChannel channel;
+        private final Queue queue;
+        private final String consumerTag;
+        private final boolean autoAck;
+        private final Consumer consumer;
+
+        /**
+         * @param queue the consumed queue, null for the direct reply-to consumer
+         */
+        Subscription(MemoryChannel channel, Queue queue, String consumerTag, boolean autoAck, Consumer consumer) {
+            this.channel = channel;
+            this.queue = queue;
+            this.consumerTag = consumerTag;
+            this.autoAck = autoAck;
+            this.consumer = consumer;
+        }
+    }
+
+    private class Queue {
+        private final String name;
+        private final boolean exclusive;
+        private final boolean autoDelete;
+        private final MemoryConnection owner;
+        private final LinkedList<Message> ready = new LinkedList<>();
+        private final List<Subscription> subscriptions = new ArrayList<>();
+        private int cursor = 0;
+        private boolean deleted = false;
+
+        Queue(String name, boolean exclusive, boolean autoDelete, MemoryConnection owner) {
+            this.name = name;
+            this.exclusive = exclusive;
+            this.autoDelete = autoDelete;
+            this.owner = owner;
+        }
+
+        synchronized int getMessageCount() {
+            return ready.size();
+        }
+
+        synchronized int getConsumerCount() {
+            return subscriptions.size();
+        }
+
+        void enqueue(Message message, boolean first) {
+            synchronized (this) {
+                if (deleted) return;
+                if (first) {
+                    ready.addFirst(message);
+                } else {
+                    ready.addLast(message);
+                }
+            }
+            dispatch();
+        }
+
+        void subscribe(Subscription subscription) {
+            synchronized (this) {
+                subscriptions.add(subscription);
+            }
+            dispatch();
+        }
+
+        void unsubscribe(Subscription subscription) {
+            boolean unused;
+            synchronized (this) {
+                subscriptions.remove(subscription);
+                unused = subscriptions.isEmpty();
+            }
+            if (unused && autoDelete) {
+                delete();
+            }
+        }
+
+        synchronized int purge() {
+            int count = ready.size();
+            ready.clear();
+            return count;
+        }
+
+        int delete() {
+            List<Subscription> cancelled;
+            int count;
+            synchronized (this) {
+                if (deleted) return 0;
+                deleted = true;
+                count = ready.size();
+                ready.clear();
+                cancelled = new ArrayList<>(subscriptions);
+                subscriptions.clear();
+            }
+            queues.remove(name, this);
+            for (Exchange exchange : exchanges.values()) {
+                for (Binding binding : exchange.bindings) {
+                    if (binding.queueName.equals(name)) exchange.bindings.remove(binding);
+                }
+            }
+            for (Subscription subscription : cancelled) {
+                subscription.channel.cancelled(subscription);
+            }
+            return count;
+        }
+
+        /**
+         * Hand the ready messages over to the subscriptions in round-robin
+         * order, skipping the channels whose prefetch window is full.
+         */
+        synchronized void dispatch() {
+            while (!ready.isEmpty() && !subscriptions.isEmpty()) {
+                boolean delivered = false;
+                int size = subscriptions.size();
+                for (int i=0; i<size; i++) {
+                    Subscription subscription = subscriptions.get((cursor + i) % size);
+                    if (subscription.channel.deliver(subscription, this, ready.peekFirst())) {
+                        ready.removeFirst();
+                        cursor = (cursor + i + 1) % size;
+                        delivered = true;
+                        break;
+                    }
+                }
+                if (!delivered) break;
+            }
+        }
+    }
+
+    private static class Unacked {
+        private final Queue queue;
+        private final Message message;
+
+        Unacked(Queue queue, Message message) {
+            this.queue = queue;
+            this.message = message;
+        }
+    }
+
+    private abstract static class Handler implements InvocationHandler {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Object[] _args = (args != null) ? args : new Object[0];
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == _args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return describe();
+                default:
+                    return handle(method, _args);
+            }
+        }
+
+        abstract String describe();
+
+        abstract Object handle(Method method, Object[] args) throws Throwable;
+
+        UnsupportedOperationException unsupported(Method method) {
+            return new UnsupportedOperationException(describe() + " does not support " + method.getName() + "()");
+        }
+    }
+
+    private class MemoryConnection extends Handler {
+        private final Connection proxy;
+        private final List<MemoryChannel> channels = new CopyOnWriteArrayList<>();
+        private final List<ShutdownListener> shutdownListeners = new CopyOnWriteArrayList<>();
+        private final AtomicInteger channelNumber = new AtomicInteger();
+        private volatile boolean open = true;
+        private volatile String id;
+
+        MemoryConnection() {
+            this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[] { Connection.class }, this);
+        }
+
+        @Override
+        String describe() {
+            return "MemoryConnection[" + virtualHost + "/" + id + "]";
+        }
+
+        @Override
+        Object handle(Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "createChannel":
+                    if (!open) throw new IOException("connection has been closed");
+                    MemoryChannel channel = new MemoryChannel(this, channelNumber.incrementAndGet());
+                    channels.add(channel);
+                    return channel.proxy;
+                case "isOpen":
+                    return open;
+                case "close":
+                case "abort":
+                    close();
+                    return null;
+                case "getId":
+                    return id;
+                case "setId":
+                    id = (String) args[0];
+                    return null;
+                case "addShutdownListener":
+                    shutdownListeners.add((ShutdownListener) args[0]);
+                    return null;
+                case "removeShutdownListener":
+                    shutdownListeners.remove((ShutdownListener) args[0]);
+                    return null;
+                case "getCloseReason":
+                case "getClientProvidedName":
+                    return null;
+                case "getServerProperties":
+                case "getClientProperties":
+                    return Collections.<String, Object>emptyMap();
+                case "getAddress":
+                    return InetAddress.getLoopbackAddress();
+                case "getPort":
+                case "getChannelMax":
+                case "getFrameMax":
+                case "getHeartbeat":
+                    return 0;
+                case "addBlockedListener":
+                case "removeBlockedListener":
+                case "clearBlockedListeners":
+                    return null;
+                default:
+                    throw unsupported(method);
+            }
+        }
+
+        void close() {
+            if (!open) return;
+            open = false;
+            for (MemoryChannel channel : channels) {
+                channel.close(true);
+            }
+            for (Queue queue : queues.values()) {
+                if (queue.exclusive && queue.owner == this) queue.delete();
+            }
+            ShutdownSignalException signal = new ShutdownSignalException(true, true, null, proxy);
+            for (ShutdownListener listener : shutdownListeners) {
+                listener.shutdownCompleted(signal);
+            }
+        }
+    }
+
+    private class MemoryChannel extends Handler {
+        private final Channel proxy;
+        private final MemoryConnection connection;
+        private final int channelNumber;
+        private final ExecutorService dispatcher;
+        private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+        private final List<ShutdownListener> shutdownListeners = new CopyOnWriteArrayList<>();
+        private final List<ConfirmListener> confirmListeners = new CopyOnWriteArrayList<>();
+        private final String directReplyName;
+        private volatile Subscription directReply;
+        private final TreeMap<Long, Unacked> unacked = new TreeMap<>();
+        private long deliveryTag = 0;
+        private int prefetch = 0;
+        private volatile long nextPublishSeqNo = 0;
+        private volatile boolean open = true;
+
+        MemoryChannel(MemoryConnection connection, final int channelNumber) {
+            this.connection = connection;
+            this.channelNumber = channelNumber;
+            this.directReplyName = DIRECT_REPLY_TO + ".g" + sequence.incrementAndGet();
+            this.proxy = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+                    new Class<?>[] { Channel.class }, this);
+            this.dispatcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "opflow-memory-channel-" + channelNumber);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        @Override
+        String describe() {
+            return "MemoryChannel[" + virtualHost + "/" + channelNumber + "]";
+        }
+
+        @Override
+        Object handle(Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "getChannelNumber":
+                    return channelNumber;
+                case "getConnection":
+                    return connection.proxy;
+                case "isOpen":
+                    return open;
+                case "close":
+                case "abort":
+                    close(false);
+                    return null;
+                case "addShutdownListener":
+                    shutdownListeners.add((ShutdownListener) args[0]);
+                    return null;
+                case "removeShutdownListener":
+                    shutdownListeners.remove((ShutdownListener) args[0]);
+                    return null;
+                case "getCloseReason":
+                    return null;
+                case "addConfirmListener":
+                    confirmListeners.add((ConfirmListener) args[0]);
+                    return null;
+                case "removeConfirmListener":
+                    return confirmListeners.remove((ConfirmListener) args[0]);
+                case "clearConfirmListeners":
+                    confirmListeners.clear();
+                    return null;
+                case "confirmSelect":
+                    assertOpen();
+                    if (nextPublishSeqNo == 0) nextPublishSeqNo = 1;
+                    return new AMQImpl.Confirm.SelectOk();
+                case "getNextPublishSeqNo":
+                    return nextPublishSeqNo;
+                case "waitForConfirms":
+                    return true;
+                case "waitForConfirmsOrDie":
+                    return null;
+                case "exchangeDeclare":
+                    assertOpen();
+                    exchangeDeclare((String) args[0], (args[1] instanceof BuiltinExchangeType) ?
+                            ((BuiltinExchangeType) args[1]).getType() : (String) args[1]);
+                    return new AMQImpl.Exchange.DeclareOk();
+                case "exchangeDeclarePassive":
+                    assertOpen();
+                    getExchange((String) args[0]);
+                    return new AMQImpl.Exchange.DeclareOk();
+                case "exchangeDelete":
+                    assertOpen();
+                    exchanges.remove((String) args[0]);
+                    return new AMQImpl.Exchange.DeleteOk();
+                case "queueDeclare":
+                    assertOpen();
+                    if (args.length == 0) {
+                        return queueDeclare("", false, true, true);
+                    }
+                    return queueDeclare((String) args[0], (Boolean) args[1], (Boolean) args[2], (Boolean) args[3]);
+                case "queueDeclarePassive": {
+                    assertOpen();
+                    if (DIRECT_REPLY_TO.equals(args[0])) {
+                        return new AMQImpl.Queue.DeclareOk(DIRECT_REPLY_TO, 0, 0);
+                    }
+                    Queue queue = getQueue((String) args[0]);
+                    return new AMQImpl.Queue.DeclareOk(queue.name, queue.getMessageCount(), queue.getConsumerCount());
+                }
+                case "queueDelete": {
+                    assertOpen();
+                    Queue queue = queues.get((String) args[0]);
+                    return new AMQImpl.Queue.DeleteOk(queue != null ? queue.delete() : 0);
+                }
+                case "queuePurge":
+                    assertOpen();
+                    return new AMQImpl.Queue.PurgeOk(getQueue((String) args[0]).purge());
+                case "queueBind":
+                    assertOpen();
+                    queueBind((String) args[0], (String) args[1], (String) args[2]);
+                    return new AMQImpl.Queue.BindOk();
+                case "queueUnbind": {
+                    assertOpen();
+                    Exchange exchange = getExchange((String) args[1]);
+                    for (Binding binding : exchange.bindings) {
+                        if (binding.queueName.equals(args[0]) && binding.key.equals(args[2])) {
+                            exchange.bindings.remove(binding);
+                        }
+                    }
+                    return new AMQImpl.Queue.UnbindOk();
+                }
+                case "messageCount":
+                    return (long) getQueue((String) args[0]).getMessageCount();
+                case "consumerCount":
+                    return (long) getQueue((String) args[0]).getConsumerCount();
+                case "basicQos":
+                    assertOpen();
+                    basicQos((Integer) args[args.length == 3 ? 1 : 0]);
+                    return null;
+                case "basicPublish":
+                    assertOpen();
+                    basicPublish((String) args[0], (String) args[1],
+                            (AMQP.BasicProperties) args[args.length - 2], (byte[]) args[args.length - 1]);
+                    return null;
+                case "basicConsume":
+                    assertOpen();
+                    return basicConsume((String) args[0],
+                            (args.length > 2 && args[1] instanceof Boolean) ? (Boolean) args[1] : false,
+                            (args.length > 3 && args[2] instanceof String) ? (String) args[2] : null,
+                            (Consumer) args[args.length - 1]);
+                case "basicCancel":
+                    basicCancel((String) args[0]);
+                    return null;
+                case "basicAck":
+                    settle((Long) args[0], (Boolean) args[1], false);
+                    return null;
+                case "basicNack":
+                    settle((Long) args[0], (Boolean) args[1], (Boolean) args[2]);
+                    return null;
+                case "basicReject":
+                    settle((Long) args[0], false, (Boolean) args[1]);
+                    return null;
+                default:
+                    throw unsupported(method);
+            }
+        }
+
+        private void assertOpen() throws IOException {
+            if (!open) throw new IOException(describe() + " has been closed");
+        }
+
+        private Exchange getExchange(String name) throws IOException {
+            Exchange exchange = exchanges.get(name);
+            if (exchange == null) {
+                throw new IOException("NOT_FOUND - no exchange '" + name + "' in vhost '" + virtualHost + "'");
+            }
+            return exchange;
+        }
+
+        private Queue getQueue(String name) throws IOException {
+            Queue queue = queues.get(name);
+            if (queue == null) {
+                throw new IOException("NOT_FOUND - no queue '" + name + "' in vhost '" + virtualHost + "'");
+            }
+            if (queue.exclusive && queue.owner != connection) {
+                throw new IOException("RESOURCE_LOCKED - cannot obtain exclusive access to locked queue '" + name + "'");
+            }
+            return queue;
+        }
+
+        private void exchangeDeclare(String name, String type) throws IOException {
+            if (!"direct".equals(type) && !"topic".equals(type) && !"fanout".equals(type)) {
+                throw new IOException("NOT_IMPLEMENTED - exchange type '" + type + "' is not supported in memory");
+            }
+            synchronized (exchanges) {
+                Exchange exchange = exchanges.get(name);
+                if (exchange == null) {
+                    exchanges.put(name, new Exchange(name, type));
+                } else if (!exchange.type.equals(type)) {
+                    throw new IOException("PRECONDITION_FAILED - inequivalent arg 'type' for exchange '" + name + "'");
+                }
+            }
+        }
+
+        private AMQP.Queue.DeclareOk queueDeclare(String name, boolean durable, boolean exclusive, boolean autoDelete) throws IOException {
+            String _name = (name == null || name.isEmpty()) ? "amq.gen-" + UUID.randomUUID().toString() : name;
+            Queue queue;
+            synchronized (queues) {
+                queue = queues.get(_name);
+                if (queue == null) {
+                    queues.put(_name, queue = new Queue(_name, exclusive, autoDelete, connection));
+                }
+            }
+            if (queue.exclusive && queue.owner != connection) {
+                throw new IOException("RESOURCE_LOCKED - cannot obtain exclusive access to locked queue '" + _name + "'");
+            }
+            return new AMQImpl.Queue.DeclareOk(_name, queue.getMessageCount(), queue.getConsumerCount());
+        }
+
+        private void queueBind(String queueName, String exchangeName, String key) throws IOException {
+            getQueue(queueName);
+            Exchange exchange = getExchange(exchangeName);
+            synchronized (exchange) {
+                for (Binding binding : exchange.bindings) {
+                    if (binding.queueName.equals(queueName) && binding.key.equals(key)) return;
+                }
+                exchange.bindings.add(new Binding(queueName, key));
+            }
+        }
+
+        private void basicQos(int prefetchCount) {
+            synchronized (this) {
+                prefetch = (prefetchCount > 0) ? prefetchCount : 0;
+            }
+            redispatch(Collections.<Queue>emptySet());
+        }
+
+        private void basicPublish(String exchangeName, String routingKey, AMQP.BasicProperties properties, byte[] body) throws IOException {
+            long seqNo = 0;
+            if (nextPublishSeqNo > 0) {
+                synchronized (this) {
+                    seqNo = nextPublishSeqNo++;
+                }
+            }
+            if (properties != null && DIRECT_REPLY_TO.equals(properties.getReplyTo())) {
+                if (directReply == null) {
+                    throw new IOException("PRECONDITION_FAILED - fast reply consumer does not exist");
+                }
+                properties = properties.builder().replyTo(directReplyName).build();
+            }
+            Set<Queue> targets = new LinkedHashSet<>();
+            Subscription replyTarget = null;
+            try {
+                if ((exchangeName == null || exchangeName.isEmpty()) && routingKey.startsWith(DIRECT_REPLY_TO + ".")) {
+                    // the reply is handed over to the requesting channel, the message is dropped if it has gone
+                    replyTarget = directReplies.get(routingKey);
+                } else if (exchangeName == null || exchangeName.isEmpty()) {
+                    Queue queue = queues.get(routingKey);
+                    if (queue != null) targets.add(queue);
+                } else {
+                    Exchange exchange = getExchange(exchangeName);
+                    for (Binding binding : exchange.bindings) {
+                        if (exchange.matches(binding, routingKey)) {
+                            Queue queue = queues.get(binding.queueName);
+                            if (queue != null) targets.add(queue);
+                        }
+                    }
+                }
+            } catch (IOException exception) {
+                if (seqNo > 0) {
+                    for (ConfirmListener listener : confirmListeners) listener.handleNack(seqNo, false);
+                }
+                throw exception;
+            }
+            Message message = new Message(exchangeName, routingKey,
+                    (properties != null) ? properties : new AMQP.BasicProperties(), body, false);
+            for (Queue queue : targets) {
+                queue.enqueue(message, false);
+            }
+            if (replyTarget != null) {
+                replyTarget.channel.deliver(replyTarget, null, message);
+            }
+            if (seqNo > 0) {
+                for (ConfirmListener listener : confirmListeners) listener.handleAck(seqNo, false);
+            }
+        }
+
+        private String basicConsume(String queueName, boolean autoAck, String consumerTag, final Consumer consumer) throws IOException {
+            Queue queue = null;
+            if (DIRECT_REPLY_TO.equals(queueName)) {
+                if (!autoAck) {
+                    throw new IOException("PRECONDITION_FAILED - reply consumer cannot acknowledge");
+                }
+                if (directReply != null) {
+                    throw new IOException("PRECONDITION_FAILED - reply consumer already set");
+                }
+            } else {
+                queue = getQueue(queueName);
+            }
+            final String _consumerTag = (consumerTag == null || consumerTag.isEmpty()) ?
+                    "amq.ctag-" + sequence.incrementAndGet() : consumerTag;
+            Subscription subscription = new Subscription(this, queue, _consumerTag, autoAck, consumer);
+            subscriptions.add(subscription);
+            if (queue == null) {
+                directReply = subscription;
+                directReplies.put(directReplyName, subscription);
+            }
+            dispatcher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    consumer.handleConsumeOk(_consumerTag);
+                }
+            });
+            if (queue != null) queue.subscribe(subscription);
+            return _consumerTag;
+        }
+
+        private void basicCancel(String consumerTag) throws IOException {
+            for (final Subscription subscription : subscriptions) {
+                if (subscription.consumerTag.equals(consumerTag)) {
+                    subscriptions.remove(subscription);
+                    if (subscription == directReply) {
+                        directReplies.remove(directReplyName);
+                        directReply = null;
+                    }
+                    if (subscription.queue != null) subscription.queue.unsubscribe(subscription);
+                    dispatcher.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            subscription.consumer.handleCancelOk(subscription.consumerTag);
+                        }
+                    });
+                    return;
+                }
+            }
+            throw new IOException("NOT_FOUND - unknown consumerTag '" + consumerTag + "'");
+        }
+
+        /**
+         * Called by the queue with its lock held, the channel must not take
+         * the lock of any queue here.
+         * 
+         * @return false if the message has not been taken, it stays in the queue
+         */
+        boolean deliver(final Subscription subscription, Queue queue, final Message message) {
+            final long tag;
+            synchronized (this) {
+                if (!open) return false;
+                if (!subscription.autoAck && prefetch > 0 && unacked.size() >= prefetch) return false;
+                tag = ++deliveryTag;
+                if (!subscription.autoAck) unacked.put(tag, new Unacked(queue, message));
+            }
+            try {
+                dispatcher.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            subscription.consumer.handleDelivery(subscription.consumerTag,
+                                    new Envelope(tag, message.redeliver, message.exchange, message.routingKey),
+                                    message.properties, message.body);
+                        } catch (Throwable exception) {
+                            if (logTracer.ready(LOG, "error")) LOG.error(logTracer
+                                    .put("consumerTag", subscription.consumerTag)
+                                    .put("exceptionClass", exception.getClass().getName())
+                                    .put("exceptionMessage", exception.getMessage())
+                                    .text("MemoryTransport[${virtualHost}] consumer[${consumerTag}] has failed, exception[${exceptionClass}]: ${exceptionMessage}")
+                                    .stringify());
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException exception) {
+                // the channel has been closed since the open check, the message goes back to the queue
+                synchronized (this) {
+                    // an unacked message taken by close() is requeued by close() itself
+                    if (!subscription.autoAck && unacked.remove(tag) == null) return true;
+                }
+                return false;
+            }
+            return true;
+        }
+
+        void cancelled(final Subscription subscription) {
+            if (!subscriptions.remove(subscription)) return;
+            dispatcher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        subscription.consumer.handleCancel(subscription.consumerTag);
+                    } catch (IOException exception) {
+                        if (logTracer.ready(LOG, "debug")) LOG.debug(logTracer
+                                .put("consumerTag", subscription.consumerTag)
+                                .text("MemoryTransport[${virtualHost}] handleCancel() of consumer[${consumerTag}] has failed")
+                                .stringify());
+                    }
+                }
+            });
+        }
+
+        private void settle(long tag, boolean multiple, boolean requeue) throws IOException {
+            List<Unacked> settled = new ArrayList<>();
+            synchronized (this) {
+                if (multiple) {
+                    SortedMap<Long, Unacked> head = unacked.headMap(tag, true);
+                    settled.addAll(head.values());
+                    head.clear();
+                } else {
+                    Unacked entry = unacked.remove(tag);
+                    if (entry == null) {
+                        throw new IOException("PRECONDITION_FAILED - unknown delivery tag " + tag);
+                    }
+                    settled.add(entry);
+                }
+            }
+            Set<Queue> affected = new LinkedHashSet<>();
+            if (requeue) {
+                for (int i=settled.size()-1; i>=0; i--) {
+                    Unacked entry = settled.get(i);
+                    synchronized (entry.queue) {
+                        if (!entry.queue.deleted) entry.queue.ready.addFirst(entry.message.redelivered());
+                    }
+                    affected.add(entry.queue);
+                }
+            }
+            redispatch(affected);
+        }
+
+        /**
+         * Give the freed prefetch window of this channel to the queues it
+         * consumes, and the requeued messages to their queues.
+         */
+        private void redispatch(Set<Queue> requeued) {
+            Set<Queue> affected = new LinkedHashSet<>(requeued);
+            for (Subscription subscription : subscriptions) {
+                if (subscription.queue != null) affected.add(subscription.queue);
+            }
+            for (Queue queue : affected) {
+                queue.dispatch();
+            }
+        }
+
+        void close(boolean byConnection) {
+            Map<Long, Unacked> pending;
+            synchronized (this) {
+                if (!open) return;
+                open = false;
+                pending = new HashMap<>(unacked);
+                unacked.clear();
+            }
+            connection.channels.remove(this);
+            if (directReply != null) {
+                directReplies.remove(directReplyName);
+                directReply = null;
+            }
+            final ShutdownSignalException signal = new ShutdownSignalException(byConnection, true, null, proxy);
+            for (final Subscription subscription : subscriptions) {
+                if (subscription.queue != null) subscription.queue.unsubscribe(subscription);
+                dispatcher.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        subscription.consumer.handleShutdownSignal(subscription.consumerTag, signal);
+                    }
+                });
+            }
+            subscriptions.clear();
+            // the messages that have not been acked go back to their queues
+            List<Long> tags = new ArrayList<>(pending.keySet());
+            Collections.sort(tags, Collections.reverseOrder());
+            Set<Queue> affected = new LinkedHashSet<>();
+            for (Long tag : tags) {
+                Unacked entry = pending.get(tag);
+                synchronized (entry.queue) {
+                    if (!entry.queue.deleted) entry.queue.ready.addFirst(entry.message.redelivered());
+                }
+                affected.add(entry.queue);
+            }
+            for (Queue queue : affected) {
+                queue.dispatch();
+            }
+            dispatcher.shutdown();
+            for (ShutdownListener listener : shutdownListeners) {
+                listener.shutdownCompleted(signal);
+            }
+        }
+    }
+}
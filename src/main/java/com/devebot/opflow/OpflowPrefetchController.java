@@ -0,0 +1,193 @@
+package com.devebot.opflow;
+
+import com.rabbitmq.client.Channel;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Re-tunes the prefetch of the channels of one consumer. The consumers report
+ * the start and the end of every delivery; the controller derives the
+ * processing time and the idle gap a processing slot waits for the next
+ * delivery (the broker round-trip when the local buffer is drained). The
+ * prefetch that keeps c slots busy for one round-trip is about
+ * c * roundtrip/processing + c (Little's law), where c is the share of the
+ * concurrency (the processing pool size, or one slot per channel) of each
+ * channel. It is bounded by prefetchMin and prefetchMax and applied with
+ * basicQos() every prefetchInterval.
+ *
+ * @author drupalex
+ */
+public class OpflowPrefetchController implements AutoCloseable {
+    public final static String[] PARAMETER_NAMES = new String[] {
+        "prefetchAdaptive", "prefetchMin", "prefetchMax", "prefetchInterval"
+    };
+    public final static int DEFAULT_PREFETCH_MIN = 1;
+
+    /**
+     * @return true if the consume options ask for the adaptive prefetch; its
+     * consumer must not be autoAck, as the broker ignores the prefetch then
+     */
+    public static boolean isConfigured(Map<String, Object> opts) {
+        return Boolean.TRUE.equals(opts.get("prefetchAdaptive"));
+    }
+
+    public final static int DEFAULT_PREFETCH_MAX = 256;
+    public final static long DEFAULT_PREFETCH_INTERVAL = 5000;
+
+    private final static Logger LOG = LoggerFactory.getLogger(OpflowPrefetchController.class);
+    private final static double ALPHA = 0.2;
+
+    private final OpflowLogTracer logTracer;
+    private final OpflowExporter exporter;
+    private final String consumerId;
+    private final int prefetchMin;
+    private final int prefetchMax;
+    private final long interval;
+    private final List<Channel> channels = new CopyOnWriteArrayList<>();
+    private final Timer timer = new Timer(true);
+
+    private final ArrayDeque<Long> idleSlots = new ArrayDeque<>();
+    private volatile int concurrency = 0;
+    private double processingAvg = -1;
+    private double roundtripAvg = -1;
+    private volatile int prefetch;
+
+    public OpflowPrefetchController(String consumerId, OpflowExporter exporter,
+            Integer initial, Integer prefetchMin, Integer prefetchMax, Long interval) {
+        this.consumerId = consumerId;
+        this.exporter = exporter;
+        this.prefetchMin = (prefetchMin != null && prefetchMin > 0) ? prefetchMin : DEFAULT_PREFETCH_MIN;
+        this.prefetchMax = (prefetchMax != null && prefetchMax >= this.prefetchMin) ? prefetchMax : Math.max(DEFAULT_PREFETCH_MAX, this.prefetchMin);
+        this.interval = (interval != null && interval > 0) ? interval : DEFAULT_PREFETCH_INTERVAL;
+        this.prefetch = clamp((initial != null && initial > 0) ? initial : this.prefetchMin);
+        this.logTracer = OpflowLogTracer.ROOT.branch("consumerId", consumerId);
+    }
+
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    public void addChannel(Channel channel) throws IOException {
+        channel.basicQos(prefetch);
+        channels.add(channel);
+        exporter.setConsumerPrefetch(consumerId, prefetch);
+    }
+
+    /**
+     * @param concurrency the number of deliveries that are processed at the
+     * same time (i.e. the size of the processing pool), 0 means one per channel
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = Math.max(concurrency, 0);
+    }
+
+    /**
+     * @param started the System.nanoTime() when the processing of a delivery starts
+     */
+    public synchronized void recordStarted(long started) {
+        // the delivery takes the slot that has been released last
+        Long released = idleSlots.pollLast();
+        if (released != null) {
+            recordIdleGap(Math.max(started - released, 0));
+        }
+    }
+
+    public synchronized void recordFinished(long started, long finished) {
+        recordProcessing(finished - started);
+        idleSlots.addLast(finished);
+        while (idleSlots.size() > getSlotCount()) {
+            idleSlots.pollFirst();
+        }
+    }
+
+    private void recordProcessing(long nanos) {
+        processingAvg = (processingAvg < 0) ? nanos : (ALPHA * nanos + (1 - ALPHA) * processingAvg);
+    }
+
+    private void recordIdleGap(long nanos) {
+        // an idle period longer than the interval is an empty queue, not a round-trip
+        double sample = Math.min(nanos, interval * 1000000.0);
+        roundtripAvg = (roundtripAvg < 0) ? sample : (ALPHA * sample + (1 - ALPHA) * roundtripAvg);
+    }
+
+    private int getSlotCount() {
+        return (concurrency > 0) ? concurrency : Math.max(channels.size(), 1);
+    }
+
+    public void start() {
+        timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                adjust();
+            }
+        }, interval, interval);
+        if (logTracer.ready(LOG, "debug")) LOG.debug(logTracer
+                .put("prefetch", prefetch)
+                .put("prefetchMin", prefetchMin)
+                .put("prefetchMax", prefetchMax)
+                .put("interval", interval)
+                .text("PrefetchController[${consumerId}] has been started, prefetch: ${prefetch} in [${prefetchMin}, ${prefetchMax}]")
+                .stringify());
+    }
+
+    private int computeTarget() {
+        double processing, roundtrip;
+        synchronized (this) {
+            processing = processingAvg;
+            roundtrip = roundtripAvg;
+        }
+        if (processing <= 0 || roundtrip < 0) return prefetch;
+        exporter.setConsumerPrefetchEstimate(consumerId, "processing_ms", processing / 1000000.0);
+        exporter.setConsumerPrefetchEstimate(consumerId, "roundtrip_ms", roundtrip / 1000000.0);
+        // the share of the processing slots that each channel must keep busy
+        int slots = (int) Math.ceil((double) getSlotCount() / Math.max(channels.size(), 1));
+        double target = Math.ceil(slots * roundtrip / processing) + slots;
+        return clamp(target > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) target);
+    }
+
+    private void adjust() {
+        int target = computeTarget();
+        int current = prefetch;
+        if (target == current) return;
+        try {
+            for (Channel channel : channels) {
+                if (channel.isOpen()) channel.basicQos(target);
+            }
+            prefetch = target;
+            exporter.setConsumerPrefetch(consumerId, target);
+            exporter.incConsumerPrefetchAdjustment(consumerId, target > current ? "up" : "down");
+            if (logTracer.ready(LOG, "debug")) LOG.debug(logTracer
+                    .put("oldPrefetch", current)
+                    .put("newPrefetch", target)
+                    .text("PrefetchController[${consumerId}] prefetch has been changed from ${oldPrefetch} to ${newPrefetch}")
+                    .stringify());
+        } catch (IOException | RuntimeException exception) {
+            if (logTracer.ready(LOG, "error")) LOG.error(logTracer
+                    .put("exceptionClass", exception.getClass().getName())
+                    .put("exceptionMessage", exception.getMessage())
+                    .text("PrefetchController[${consumerId}] basicQos() has failed")
+                    .stringify());
+        }
+    }
+
+    private int clamp(int value) {
+        return Math.max(prefetchMin, Math.min(prefetchMax, value));
+    }
+
+    @Override
+    public void close() {
+        timer.cancel();
+        timer.purge();
+        channels.clear();
+        if (logTracer.ready(LOG, "debug")) LOG.debug(logTracer
+                .text("PrefetchController[${consumerId}] has been closed")
+                .stringify());
+    }
+}
@@ -0,0 +1,220 @@
+package com.devebot.opflow;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the message handlers of a consumer outside of the amqp-client dispatch
+ * thread. When an ordering key is given, the tasks are spread over a fixed set
+ * of serial lanes by the hash of the key, so that the messages with the same
+ * key are handled one by one in their delivery order.
+ *
+ * @author drupalex
+ */
+public class OpflowProcessingExecutor implements AutoCloseable {
+    public final static String[] PARAMETER_NAMES = new String[] {
+        "processingPoolType", "processingPoolSize", "processingOrderKey"
+    };
+
+    private final static Logger LOG = LoggerFactory.getLogger(OpflowProcessingExecutor.class);
+    private final static long CLOSE_TIMEOUT = 30000;
+    private final OpflowLogTracer logTracer;
+
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+    private final Lane[] lanes;
+    private final int concurrency;
+    private final Object pendingLock = new Object();
+    private int pending = 0;
+
+    /**
+     * @param consumerId the consumer that owns the executor
+     * @param executor an executor provided by the application, it is not shutdown by close()
+     * @param poolType the type of the created pool (fixed, cached, forkjoin, virtual) when executor is null
+     * @param poolSize the size of the fixed/forkjoin pool
+     * @param ordered whether the tasks of the same key are serialized
+     */
+    public OpflowProcessingExecutor(String consumerId, Executor executor, String poolType, Integer poolSize, boolean ordered) {
+        this.logTracer = OpflowLogTracer.ROOT.branch("consumerId", consumerId);
+        int size = (poolSize != null && poolSize > 0) ? poolSize : Runtime.getRuntime().availableProcessors();
+        this.concurrency = size;
+        if (executor != null) {
+            this.executor = executor;
+            this.ownedExecutor = null;
+        } else {
+            this.ownedExecutor = createExecutor(poolType, size);
+            this.executor = this.ownedExecutor;
+        }
+        if (ordered) {
+            this.lanes = new Lane[Math.max(16, size * 4)];
+            for (int i=0; i<lanes.length; i++) {
+                lanes[i] = new Lane();
+            }
+        } else {
+            this.lanes = null;
+        }
+        if (logTracer.ready(LOG, "info")) LOG.info(logTracer
+                .put("poolType", (executor != null) ? executor.getClass().getName() : poolType)
+                .put("poolSize", size)
+                .put("ordered", ordered)
+                .text("ProcessingExecutor[${consumerId}] has been created, type: ${poolType}, size: ${poolSize}, ordered: ${ordered}")
+                .stringify());
+    }
+
+    /**
+     * @return the number of tasks that are expected to run at the same time:
+     * the pool size, or the processingPoolSize (default: the number of CPUs)
+     * for the unbounded pools and the executors of the application
+     */
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * @return true if the consume options ask for a processing executor; its
+     * consumer must not be autoAck, as the deliveries wait in the pool
+     */
+    public static boolean isConfigured(Map<String, Object> opts) {
+        return opts.get("processingExecutor") instanceof Executor || opts.get("processingPoolType") instanceof String;
+    }
+
+    public void execute(String key, final Runnable task) {
+        synchronized (pendingLock) {
+            pending++;
+        }
+        Runnable counted = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    done();
+                }
+            }
+        };
+        try {
+            if (lanes == null || key == null) {
+                executor.execute(counted);
+            } else {
+                lanes[(key.hashCode() & Integer.MAX_VALUE) % lanes.length].execute(counted);
+            }
+        } catch (RuntimeException exception) {
+            done();
+            throw exception;
+        }
+    }
+
+    private void done() {
+        synchronized (pendingLock) {
+            if (--pending == 0) pendingLock.notifyAll();
+        }
+    }
+
+    /**
+     * Stop the owned pool and wait (at most CLOSE_TIMEOUT) for the submitted
+     * tasks to finish, including those given to an application executor, so
+     * that their acks can still be sent on the open channels.
+     */
+    @Override
+    public void close() {
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+        }
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+        synchronized (pendingLock) {
+            try {
+                while (pending > 0) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) break;
+                    pendingLock.wait(remaining);
+                }
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+            if (pending > 0 && logTracer.ready(LOG, "warn")) LOG.warn(logTracer
+                    .put("pending", pending)
+                    .text("ProcessingExecutor[${consumerId}] has been closed with ${pending} unfinished tasks")
+                    .stringify());
+        }
+    }
+
+    private ExecutorService createExecutor(String poolType, int size) {
+        if (poolType != null) switch (poolType) {
+            case "cached":
+                return Executors.newCachedThreadPool();
+            case "forkjoin":
+                return new ForkJoinPool(size);
+            case "virtual":
+                try {
+                    Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                    return (ExecutorService) method.invoke(null);
+                } catch (ReflectiveOperationException | RuntimeException exception) {
+                    if (logTracer.ready(LOG, "warn")) LOG.warn(logTracer
+                            .text("ProcessingExecutor[${consumerId}] virtual threads are not available, use a cached pool")
+                            .stringify());
+                    return Executors.newCachedThreadPool();
+                }
+            default:
+                break;
+        }
+        return Executors.newFixedThreadPool(size);
+    }
+
+    private class Lane implements Executor {
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+        private boolean running = false;
+
+        @Override
+        public void execute(Runnable task) {
+            synchronized (this) {
+                tasks.add(task);
+                if (running) return;
+                running = true;
+            }
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        drain();
+                    }
+                });
+            } catch (RuntimeException exception) {
+                synchronized (this) {
+                    tasks.clear();
+                    running = false;
+                }
+                throw exception;
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        running = false;
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException exception) {
+                    if (logTracer.ready(LOG, "error")) LOG.error(logTracer
+                            .put("exceptionClass", exception.getClass().getName())
+                            .put("exceptionMessage", exception.getMessage())
+                            .text("ProcessingExecutor[${consumerId}] task has failed")
+                            .stringify());
+                }
+            }
+        }
+    }
+}
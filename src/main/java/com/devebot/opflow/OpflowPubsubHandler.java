@@ -28,6 +28,10 @@ public class OpflowPubsubHandler implements AutoCloseable {
     private int prefetch = 0;
     private int subscriberLimit = 0;
     private int redeliveredLimit = 0;
+    private int consumerCount = 1;
+    private final Map<String, Object> prefetchOptions = new HashMap<>();
+    private final Map<String, Object> processingOptions = new HashMap<>();
+    private final Map<String, Object> ackOptions = new HashMap<>();
     private OpflowPubsubListener listener;
 
     public OpflowPubsubHandler(Map<String, Object> params) throws OpflowBootstrapException {
@@ -56,13 +60,9 @@ public class OpflowPubsubHandler implements AutoCloseable {
         engine = new OpflowEngine(brokerParams);
         executor = new OpflowExecutor(engine);
         
-        if (subscriberName != null) {
-            executor.assertQueue(subscriberName);
-        }
-        
-        if (recyclebinName != null) {
-            executor.assertQueue(recyclebinName);
-        }
+        executor.declareTopology(new OpflowExecutor.Topology()
+                .queue(subscriberName)
+                .queue(recyclebinName));
         
         if (params.get("prefetch") instanceof Integer) {
             prefetch = (Integer) params.get("prefetch");
@@ -79,12 +79,22 @@ public class OpflowPubsubHandler implements AutoCloseable {
             if (redeliveredLimit < 0) redeliveredLimit = 0;
         }
         
+        if (params.get("consumerCount") instanceof Integer) {
+            consumerCount = (Integer) params.get("consumerCount");
+            if (consumerCount < 1) consumerCount = 1;
+        }
+        
+        OpflowUtil.copyParameters(prefetchOptions, params, OpflowPrefetchController.PARAMETER_NAMES);
+        OpflowUtil.copyParameters(processingOptions, params, OpflowProcessingExecutor.PARAMETER_NAMES);
+        OpflowUtil.copyParameters(ackOptions, params, OpflowAckCoalescer.PARAMETER_NAMES);
+        
         if (logTracer.ready(LOG, "info")) LOG.info(logTracer
                 .put("subscriberName", subscriberName)
                 .put("recyclebinName", recyclebinName)
                 .put("prefetch", prefetch)
                 .put("subscriberLimit", subscriberLimit)
                 .put("redeliveredLimit", redeliveredLimit)
+                .put("consumerCount", consumerCount)
                 .tags("PubsubHandler.new() parameters")
                 .text("PubsubHandler[${pubsubHandlerId}].new() parameters")
                 .stringify());
@@ -94,27 +104,31 @@ public class OpflowPubsubHandler implements AutoCloseable {
                 .stringify());
     }
 
-    public void publish(String body) {
-        publish(body, null);
+    public OpflowConfirmTracker.Confirmation publish(String body) {
+        return publish(body, null);
     }
     
-    public void publish(String body, Map<String, Object> opts) {
-        publish(body, opts, null);
+    public OpflowConfirmTracker.Confirmation publish(String body, Map<String, Object> opts) {
+        return publish(body, opts, null);
     }
     
-    public void publish(String body, Map<String, Object> opts, String routingKey) {
-        publish(OpflowUtil.getBytes(body), opts, routingKey);
+    public OpflowConfirmTracker.Confirmation publish(String body, Map<String, Object> opts, String routingKey) {
+        return publish(OpflowUtil.getBytes(body), opts, routingKey);
     }
     
-    public void publish(byte[] body) {
-        publish(body, null);
+    public OpflowConfirmTracker.Confirmation publish(byte[] body) {
+        return publish(body, null);
     }
     
-    public void publish(byte[] body, Map<String, Object> options) {
-        publish(body, options, null);
+    public OpflowConfirmTracker.Confirmation publish(byte[] body, Map<String, Object> options) {
+        return publish(body, options, null);
     }
     
-    public void publish(byte[] body, Map<String, Object> options, String routingKey) {
+    /**
+     * @return the confirmation of the broker when the publisher confirms are
+     * enabled, null otherwise
+     */
+    public OpflowConfirmTracker.Confirmation publish(byte[] body, Map<String, Object> options, String routingKey) {
         options = OpflowUtil.ensureNotNull(options);
         
         Object requestId = options.get("requestId");
@@ -140,11 +154,41 @@ public class OpflowPubsubHandler implements AutoCloseable {
                     .stringify());
         }
         
-        engine.produce(body, options, override);
+        OpflowConfirmTracker.Confirmation confirmation = engine.produce(body, options, override);
         
         if (logPublish != null && logPublish.ready(LOG, "info")) LOG.info(logPublish
                 .text("Request[${requestId}] - PubsubHandler[${pubsubHandlerId}].publish() request has enqueued")
                 .stringify());
+        
+        return confirmation;
+    }
+    
+    public int publishBatch(List<OpflowMessage> messages) {
+        return publishBatch(messages, null);
+    }
+    
+    public int publishBatch(List<OpflowMessage> messages, Map<String, Object> options) {
+        return publishBatch(messages, options, null);
+    }
+    
+    /**
+     * Publish the messages on one channel. The options are the headers shared
+     * by all of the messages, the info map of each message overrides them.
+     */
+    public int publishBatch(List<OpflowMessage> messages, Map<String, Object> options, String routingKey) {
+        Map<String, Object> override = null;
+        if (routingKey != null) {
+            override = new HashMap<>();
+            override.put("routingKey", routingKey);
+        }
+        
+        if (logTracer.ready(LOG, "info")) LOG.info(logTracer
+                .put("batchSize", (messages != null) ? messages.size() : 0)
+                .put("routingKey", routingKey)
+                .text("PubsubHandler[${pubsubHandlerId}].publishBatch() with ${batchSize} messages, routingKey: ${routingKey}")
+                .stringify());
+        
+        return engine.produceBatch(messages, options, override);
     }
     
     public OpflowEngine.ConsumerInfo subscribe(final OpflowPubsubListener newListener) {
@@ -227,10 +271,18 @@ public class OpflowPubsubHandler implements AutoCloseable {
             @Override
             public void transform(Map<String, Object> opts) {
                 opts.put("consumerId", _consumerId);
-                opts.put("autoAck", Boolean.TRUE);
                 opts.put("queueName", subscriberName);
                 if (prefetch > 0) opts.put("prefetch", prefetch);
                 if (subscriberLimit > 0) opts.put("consumerLimit", subscriberLimit);
+                if (consumerCount > 1) opts.put("consumerCount", consumerCount);
+                opts.putAll(prefetchOptions);
+                opts.putAll(processingOptions);
+                opts.putAll(ackOptions);
+                // the messages waiting in the processing pool stay unacked, bounded by the prefetch;
+                // the adaptive prefetch and the coalesced acks have no effect on an autoAck consumer
+                opts.put("autoAck", !OpflowProcessingExecutor.isConfigured(processingOptions) &&
+                        !OpflowPrefetchController.isConfigured(prefetchOptions) &&
+                        !OpflowAckCoalescer.isConfigured(ackOptions));
             }
         }).toMap());
         consumerInfos.add(consumer);
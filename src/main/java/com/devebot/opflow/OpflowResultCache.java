@@ -0,0 +1,91 @@
+package com.devebot.opflow;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded local cache of the serialized results of an idempotent routine.
+ * The entries are evicted in least-recently-used order when the cache is
+ * full, and ignored (then removed) when they are older than the ttl. Only the
+ * result bytes are kept, each hit is deserialized into a fresh object.
+ *
+ * @author drupalex
+ */
+public class OpflowResultCache {
+    private final long ttl;
+    private final int maxEntries;
+    private final Map<String, CacheEntry> entries;
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    private static class CacheEntry {
+        private final byte[] value;
+        private final long expiredTime;
+
+        CacheEntry(byte[] value, long expiredTime) {
+            this.value = value;
+            this.expiredTime = expiredTime;
+        }
+    }
+
+    /**
+     * @param ttl the time to live of an entry in milliseconds
+     * @param maxEntries the maximum number of entries
+     */
+    public OpflowResultCache(long ttl, final int maxEntries) {
+        this.ttl = ttl;
+        this.maxEntries = (maxEntries > 0) ? maxEntries : 1;
+        this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > OpflowResultCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return the cached bytes, or null if the key is missing or has expired
+     */
+    public synchronized byte[] get(String key) {
+        CacheEntry entry = entries.get(key);
+        if (entry != null && entry.expiredTime <= OpflowUtil.getCurrentTime()) {
+            entries.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return entry.value;
+    }
+
+    public synchronized void put(String key, byte[] value) {
+        if (value == null) return;
+        entries.put(key, new CacheEntry(value, OpflowUtil.getCurrentTime() + ttl));
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+}
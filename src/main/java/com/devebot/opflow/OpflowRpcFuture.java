@@ -0,0 +1,130 @@
+package com.devebot.opflow;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The pending result of an asynchronous RPC request. It is completed by the
+ * thread that receives the final message (the callback consumer or the
+ * timeout monitor), and the listeners are invoked on that thread, so they
+ * should not block.
+ *
+ * @author drupalex
+ */
+public class OpflowRpcFuture implements Future<OpflowRpcResult> {
+    private final static Logger LOG = LoggerFactory.getLogger(OpflowRpcFuture.class);
+
+    public interface Listener {
+        public void handleResult(OpflowRpcResult result);
+    }
+
+    public interface ProgressListener {
+        public void handleProgress(OpflowRpcResult.Step step);
+    }
+
+    private final String requestId;
+    private final ProgressListener progressListener;
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private List<Listener> listeners = new ArrayList<>(1);
+    private volatile OpflowRpcResult result;
+
+    public OpflowRpcFuture(String requestId, ProgressListener progressListener) {
+        this.requestId = requestId;
+        this.progressListener = progressListener;
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public boolean isProgressEnabled() {
+        return progressListener != null;
+    }
+
+    /**
+     * Register a listener of the result. It is invoked immediately on the
+     * caller thread if the result is already available.
+     */
+    public void addListener(Listener listener) {
+        synchronized (this) {
+            if (result == null) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        invoke(listener, result);
+    }
+
+    void progress(OpflowRpcResult.Step step) {
+        if (progressListener != null && result == null) {
+            progressListener.handleProgress(step);
+        }
+    }
+
+    boolean complete(OpflowRpcResult result) {
+        List<Listener> _listeners;
+        synchronized (this) {
+            if (this.result != null) return false;
+            this.result = result;
+            _listeners = listeners;
+            listeners = null;
+        }
+        latch.countDown();
+        for (Listener listener : _listeners) {
+            invoke(listener, result);
+        }
+        return true;
+    }
+
+    private void invoke(Listener listener, OpflowRpcResult result) {
+        try {
+            listener.handleResult(result);
+        } catch (RuntimeException exception) {
+            OpflowLogTracer logFuture = OpflowLogTracer.ROOT.branch("requestId", requestId);
+            if (logFuture.ready(LOG, "error")) LOG.error(logFuture
+                    .put("exceptionClass", exception.getClass().getName())
+                    .put("exceptionMessage", exception.getMessage())
+                    .text("Request[${requestId}] - result listener has failed, exception[${exceptionClass}]: ${exceptionMessage}")
+                    .stringify());
+        }
+    }
+
+    /**
+     * An RPC request that has been published could not be withdrawn.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return result != null;
+    }
+
+    @Override
+    public OpflowRpcResult get() throws InterruptedException, ExecutionException {
+        latch.await();
+        return result;
+    }
+
+    @Override
+    public OpflowRpcResult get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!latch.await(timeout, unit)) {
+            throw new TimeoutException("Request[" + requestId + "] has not been completed");
+        }
+        return result;
+    }
+}
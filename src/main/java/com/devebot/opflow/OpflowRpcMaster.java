@@ -1,15 +1,29 @@
 package com.devebot.opflow;
 
 import com.devebot.opflow.exception.OpflowBootstrapException;
+import com.devebot.opflow.exception.OpflowRequestRejectedException;
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,9 +38,12 @@ public class OpflowRpcMaster implements AutoCloseable {
     private final long DELAY_TIMEOUT = 1000;
     private final int PREFETCH_NUM = 1;
     private final int CONSUMER_MAX = 1;
+    private final static String DIRECT_REPLY_TO = "amq.rabbitmq.reply-to";
+    private final static String HEDGE_SUFFIX = "-hedge";
+    private final static double HEDGING_MAX_TOKENS = 10;
     
-    private final Lock lock = new ReentrantLock();
-    private final Condition idle = lock.newCondition();
+    private final AtomicInteger inflight = new AtomicInteger();
+    private volatile Thread drainingThread = null;
     
     private final OpflowEngine engine;
     private final OpflowExecutor executor;
@@ -38,12 +55,37 @@ public class OpflowRpcMaster implements AutoCloseable {
     private final Boolean responseDurable;
     private final Boolean responseExclusive;
     private final Boolean responseAutoDelete;
+    private final boolean directReplyTo;
     
     private final boolean monitorEnabled;
     private final String monitorId;
     private final int monitorInterval;
     private final long monitorTimeout;
     
+    private final int forkedPoolSize;
+    private final long forkedIdleTimeout;
+    
+    private final String[] coalescingRoutines;
+    private final AtomicLong coalescedCount = new AtomicLong();
+    
+    private final String[] hedgingRoutines;
+    private final int hedgingPercentile;
+    private final int hedgingBudget;
+    private final AtomicLong hedgedCount = new AtomicLong();
+    private final AtomicLong hedgeWonCount = new AtomicLong();
+    
+    private final String[] batchingRoutines;
+    private final long batchingLinger;
+    private final int batchingMaxSize;
+    
+    private final boolean limiterEnabled;
+    private final String[] limiterRoutines;
+    private final int limiterInitialLimit;
+    private final int limiterMaxLimit;
+    private final long limiterWaitTimeout;
+    private final OpflowConcurrencyLimiter limiter;
+    private final ConcurrentMap<String, OpflowConcurrencyLimiter> routineLimiters = new ConcurrentHashMap<>();
+    
     public OpflowRpcMaster(Map<String, Object> params) throws OpflowBootstrapException {
         params = OpflowUtil.ensureNotNull(params);
         
@@ -108,7 +150,9 @@ public class OpflowRpcMaster implements AutoCloseable {
             responseAutoDelete = responseQueueSuffix != null ? true : null;
         }
         
-        if (responseName != null) {
+        directReplyTo = "direct".equals(params.get("responseMode"));
+        
+        if (responseName != null && !directReplyTo) {
             executor.assertQueue(responseName, responseDurable, responseExclusive, responseAutoDelete);
         }
         
@@ -123,7 +167,7 @@ public class OpflowRpcMaster implements AutoCloseable {
         if (params.get("monitorInterval") != null && params.get("monitorInterval") instanceof Integer) {
             monitorInterval = (Integer) params.get("monitorInterval");
         } else {
-            monitorInterval = 14000; // can run 2-3 times in 30s
+            monitorInterval = 14000; // a positive value enables the monitor
         }
         
         if (params.get("monitorTimeout") != null && params.get("monitorTimeout") instanceof Long) {
@@ -132,15 +176,116 @@ public class OpflowRpcMaster implements AutoCloseable {
             monitorTimeout = 0;
         }
 
+        if (params.get("forkedPoolSize") instanceof Integer) {
+            forkedPoolSize = (Integer) params.get("forkedPoolSize");
+        } else {
+            forkedPoolSize = 8;
+        }
+        
+        if (params.get("forkedIdleTimeout") instanceof Long) {
+            forkedIdleTimeout = (Long) params.get("forkedIdleTimeout");
+        } else {
+            forkedIdleTimeout = 60000l;
+        }
+        
+        if (params.get("coalescingRoutines") instanceof String[]) {
+            coalescingRoutines = (String[]) params.get("coalescingRoutines");
+        } else {
+            coalescingRoutines = null;
+        }
+        
+        if (params.get("hedgingRoutines") instanceof String[]) {
+            hedgingRoutines = (String[]) params.get("hedgingRoutines");
+        } else {
+            hedgingRoutines = null;
+        }
+        
+        if (params.get("hedgingPercentile") instanceof Integer) {
+            hedgingPercentile = Math.min(Math.max((Integer) params.get("hedgingPercentile"), 1), 100);
+        } else {
+            hedgingPercentile = 95;
+        }
+        
+        if (params.get("hedgingBudget") instanceof Integer) {
+            hedgingBudget = Math.max((Integer) params.get("hedgingBudget"), 0);
+        } else {
+            hedgingBudget = 10; // percents of the requests of the hedging routines
+        }
+        
+        if (params.get("batchingRoutines") instanceof String[]) {
+            batchingRoutines = (String[]) params.get("batchingRoutines");
+        } else {
+            batchingRoutines = null;
+        }
+        
+        if (params.get("batchingLinger") instanceof Long) {
+            batchingLinger = Math.max((Long) params.get("batchingLinger"), 1l);
+        } else {
+            batchingLinger = 10l;
+        }
+        
+        if (params.get("batchingMaxSize") instanceof Integer) {
+            batchingMaxSize = Math.max((Integer) params.get("batchingMaxSize"), 1);
+        } else {
+            batchingMaxSize = 32;
+        }
+        
+        if (params.get("limiterEnabled") instanceof Boolean) {
+            limiterEnabled = (Boolean) params.get("limiterEnabled");
+        } else {
+            limiterEnabled = false;
+        }
+        
+        if (params.get("limiterRoutines") instanceof String[]) {
+            limiterRoutines = (String[]) params.get("limiterRoutines");
+        } else {
+            limiterRoutines = null;
+        }
+        
+        if (params.get("limiterMaxLimit") instanceof Integer) {
+            limiterMaxLimit = Math.max((Integer) params.get("limiterMaxLimit"), 1);
+        } else {
+            limiterMaxLimit = 200;
+        }
+        
+        if (params.get("limiterInitialLimit") instanceof Integer) {
+            limiterInitialLimit = Math.min(Math.max((Integer) params.get("limiterInitialLimit"), 1), limiterMaxLimit);
+        } else {
+            limiterInitialLimit = Math.min(20, limiterMaxLimit);
+        }
+        
+        if (params.get("limiterWaitTimeout") instanceof Long) {
+            limiterWaitTimeout = Math.max((Long) params.get("limiterWaitTimeout"), 0l);
+        } else {
+            limiterWaitTimeout = 0;
+        }
+        
+        limiter = limiterEnabled ? new OpflowConcurrencyLimiter(rpcMasterId, limiterInitialLimit, 1, limiterMaxLimit) : null;
+
         if (logTracer.ready(LOG, "info")) LOG.info(logTracer
                 .put("responseName", responseName)
                 .put("responseDurable", responseDurable)
                 .put("responseExclusive", responseExclusive)
                 .put("responseAutoDelete", responseAutoDelete)
+                .put("directReplyTo", directReplyTo)
                 .put("monitorId", monitorId)
                 .put("monitorEnabled", monitorEnabled)
                 .put("monitorInterval", monitorInterval)
                 .put("monitorTimeout", monitorTimeout)
+                .put("forkedPoolSize", forkedPoolSize)
+                .put("forkedIdleTimeout", forkedIdleTimeout)
+                .put("coalescingRoutines", coalescingRoutines)
+                .put("hedgingRoutines", hedgingRoutines)
+                .put("hedgingPercentile", hedgingPercentile)
+                .put("hedgingBudget", hedgingBudget)
+                .put("batchingRoutines", batchingRoutines)
+                .put("batchingLinger", batchingLinger)
+                .put("batchingMaxSize", batchingMaxSize)
+                .put("limiterEnabled", limiterEnabled)
+                .put("limiterRoutines", limiterRoutines)
+                .put("limiterInitialLimit", limiterInitialLimit)
+                .put("limiterMaxLimit", limiterMaxLimit)
+                .put("limiterWaitTimeout", limiterWaitTimeout)
                 .tags("RpcMaster.new() parameters")
                 .text("RpcMaster[${rpcMasterId}].new() parameters")
                 .stringify());
@@ -193,6 +338,16 @@ public class OpflowRpcMaster implements AutoCloseable {
                         .text("initCallbackConsumer() - result body length")
                         .stringify());
 
+                if (headers != null && Boolean.TRUE.equals(headers.get("batched"))) {
+                    int delivered = deliverBatch(content);
+                    if (logResult != null && logResult.ready(LOG, "debug")) LOG.debug(logResult
+                        .put("correlationId", taskId)
+                        .put("deliveredCount", delivered)
+                        .text("initCallbackConsumer() - batch[${correlationId}] has been delivered to ${deliveredCount} tasks")
+                        .stringify());
+                    return true;
+                }
+
                 OpflowRpcRequest task = tasks.get(taskId);
                 if (taskId == null || task == null) {
                     if (logResult != null && logResult.ready(LOG, "debug")) LOG.debug(logResult
@@ -205,7 +360,7 @@ public class OpflowRpcMaster implements AutoCloseable {
                         .text("initCallbackConsumer() - push Message object to task[${correlationId}]")
                         .stringify());
                     OpflowMessage message = new OpflowMessage(content, properties.getHeaders());
-                    task.push(message);
+                    deliver(taskId, task, message);
                     if (logResult != null && logResult.ready(LOG, "debug")) LOG.debug(logResult
                         .put("correlationId", taskId)
                         .text("initCallbackConsumer() - returned value of task[${correlationId}]")
@@ -217,7 +372,13 @@ public class OpflowRpcMaster implements AutoCloseable {
             @Override
             public void transform(Map<String, Object> opts) {
                 opts.put("consumerId", _consumerId);
-                if (!forked) {
+                if (!forked && directReplyTo) {
+                    // the replies are pushed to this channel, the requests must be published on it
+                    opts.put("queueName", DIRECT_REPLY_TO);
+                    opts.put("passive", Boolean.TRUE);
+                    opts.put("autoAck", Boolean.TRUE);
+                    opts.put("forceNewChannel", Boolean.TRUE);
+                } else if (!forked) {
                     opts.put("queueName", responseName);
                     if (responseDurable != null) opts.put("durable", responseDurable);
                     if (responseExclusive != null) opts.put("exclusive", responseExclusive);
@@ -231,6 +392,547 @@ public class OpflowRpcMaster implements AutoCloseable {
         }).toMap());
     }
     
+    private void deliver(String taskId, OpflowRpcRequest task, OpflowMessage message) {
+        boolean hedgeCopy = taskId.endsWith(HEDGE_SUFFIX);
+        Hedge hedge = hedges.get(hedgeCopy ? taskId.substring(0, taskId.length() - HEDGE_SUFFIX.length()) : taskId);
+        boolean finishing = !task.isFinished();
+        task.push(message);
+        if (finishing && task.isFinished()) {
+            exporter.observeRpcLatency("rpc_master", rpcMasterId, task.getRoutineId(), "round_trip",
+                    System.nanoTime() - task.getStartTime());
+            if (hedge != null) {
+                completeHedge(hedge, hedgeCopy);
+            }
+        }
+    }
+    
+    /**
+     * Fan the batched reply of a worker out to the requests of the batch.
+     * 
+     * @return the number of requests that were still waiting for their result
+     */
+    private int deliverBatch(byte[] content) {
+        BatchReplies envelope = OpflowJsontool.toObject(OpflowUtil.getString(content), BatchReplies.class);
+        if (envelope == null || envelope.replies == null) return 0;
+        int count = 0;
+        for (Map<String, Object> reply : envelope.replies) {
+            if (reply == null) continue;
+            Map<String, Object> headers = new HashMap<>(reply);
+            String taskId = (String) headers.remove("correlationId");
+            String body = (String) headers.remove("body");
+            OpflowRpcRequest task = (taskId != null) ? tasks.get(taskId) : null;
+            if (task == null) continue;
+            deliver(taskId, task, new OpflowMessage(OpflowUtil.getBytes(body), headers));
+            count++;
+        }
+        return count;
+    }
+    
+    private static class BatchReplies {
+        private List<Map<String, Object>> replies;
+    }
+    
+    private final static Timer FORKED_EVICTOR = new Timer("opflow-forked-evictor", true);
+    
+    /**
+     * Publishes the messages that are sent from the timer callbacks (the
+     * hedged copies and the lingering batches): engine.produce() may block on the channel pool, on the
+     * confirm window or on the broker flow control, and the shared wheel timer
+     * must not be stalled by it.
+     */
+    private final static ExecutorService DEFERRED_PUBLISHER = createDeferredPublisher();
+    
+    private static ExecutorService createDeferredPublisher() {
+        int size = Math.max(Runtime.getRuntime().availableProcessors(), 2);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "opflow-deferred-publisher-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+    
+    private static class ForkedConsumer {
+        private final OpflowEngine.ConsumerInfo consumerInfo;
+        private final long idleSince;
+        
+        ForkedConsumer(OpflowEngine.ConsumerInfo consumerInfo) {
+            this.consumerInfo = consumerInfo;
+            this.idleSince = OpflowUtil.getCurrentTime();
+        }
+    }
+    
+    /**
+     * The idle reply consumers of the forked mode, the most recently released first.
+     */
+    private final LinkedList<ForkedConsumer> forkedConsumers = new LinkedList<>();
+    private TimerTask forkedEvictionTask = null;
+    private boolean forkedClosed = false;
+    
+    /**
+     * Lease a reply consumer (an exclusive server-named queue) for a forked
+     * request. A consumer released by a finished request is reused, so the
+     * queue declaration and the basic.consume are only paid when the pool is
+     * empty.
+     */
+    private OpflowEngine.ConsumerInfo leaseForkedConsumer() {
+        synchronized (forkedConsumers) {
+            while (!forkedConsumers.isEmpty()) {
+                ForkedConsumer idle = forkedConsumers.removeFirst();
+                if (idle.consumerInfo.getChannel().isOpen()) return idle.consumerInfo;
+                engine.cancelConsumer(idle.consumerInfo);
+            }
+            if (forkedEvictionTask == null && forkedIdleTimeout > 0) {
+                forkedEvictionTask = new TimerTask() {
+                    @Override
+                    public void run() {
+                        evictForkedConsumers();
+                    }
+                };
+                long period = Math.max(forkedIdleTimeout / 2, 1000l);
+                FORKED_EVICTOR.scheduleAtFixedRate(forkedEvictionTask, period, period);
+            }
+        }
+        return initCallbackConsumer(true);
+    }
+    
+    /**
+     * Give the reply consumer back to the pool, or cancel it if the pool is full.
+     */
+    private void releaseForkedConsumer(OpflowEngine.ConsumerInfo consumerInfo) {
+        synchronized (forkedConsumers) {
+            if (!forkedClosed && forkedConsumers.size() < forkedPoolSize && consumerInfo.getChannel().isOpen()) {
+                forkedConsumers.addFirst(new ForkedConsumer(consumerInfo));
+                return;
+            }
+        }
+        engine.cancelConsumer(consumerInfo);
+    }
+    
+    private void evictForkedConsumers() {
+        List<OpflowEngine.ConsumerInfo> evicted = new LinkedList<>();
+        long threshold = OpflowUtil.getCurrentTime() - forkedIdleTimeout;
+        synchronized (forkedConsumers) {
+            while (!forkedConsumers.isEmpty() && forkedConsumers.getLast().idleSince < threshold) {
+                evicted.add(forkedConsumers.removeLast().consumerInfo);
+            }
+        }
+        for (OpflowEngine.ConsumerInfo consumerInfo : evicted) {
+            engine.cancelConsumer(consumerInfo);
+        }
+        if (!evicted.isEmpty() && logTracer.ready(LOG, "debug")) LOG.debug(logTracer
+                .put("evictedCount", evicted.size())
+                .text("RpcMaster[${rpcMasterId}] - ${evictedCount} idle forked consumers have been evicted")
+                .stringify());
+    }
+    
+    private void closeForkedConsumers() {
+        List<ForkedConsumer> idle;
+        synchronized (forkedConsumers) {
+            forkedClosed = true;
+            if (forkedEvictionTask != null) forkedEvictionTask.cancel();
+            idle = new LinkedList<>(forkedConsumers);
+            forkedConsumers.clear();
+        }
+        for (ForkedConsumer forkedConsumer : idle) {
+            engine.cancelConsumer(forkedConsumer.consumerInfo);
+        }
+    }
+    
+    /**
+     * A follower shares the reply of its leader, so the options that shape
+     * the reply (sent to the worker as headers) are part of the key.
+     */
+    private static class CoalescingKey {
+        private final String routineId;
+        private final byte[] body;
+        private final Object messageScope;
+        private final Object progressEnabled;
+        private final int hash;
+        
+        CoalescingKey(String routineId, byte[] body, Map<String, Object> options) {
+            this.routineId = routineId;
+            this.body = body;
+            this.messageScope = options.get("messageScope");
+            this.progressEnabled = (options.get("progressEnabled") instanceof Boolean) ? options.get("progressEnabled") : null;
+            int _hash = 31 * routineId.hashCode() + Arrays.hashCode(body);
+            _hash = 31 * _hash + (messageScope != null ? messageScope.hashCode() : 0);
+            _hash = 31 * _hash + (progressEnabled != null ? progressEnabled.hashCode() : 0);
+            this.hash = _hash;
+        }
+        
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof CoalescingKey)) return false;
+            CoalescingKey other = (CoalescingKey) obj;
+            return hash == other.hash && routineId.equals(other.routineId) && Arrays.equals(body, other.body) &&
+                    isEqual(messageScope, other.messageScope) && isEqual(progressEnabled, other.progressEnabled);
+        }
+        
+        private static boolean isEqual(Object a, Object b) {
+            return (a == null) ? (b == null) : a.equals(b);
+        }
+    }
+    
+    /**
+     * The in-flight requests of the coalescing routines, by routineId, body
+     * and reply options.
+     */
+    private final ConcurrentMap<CoalescingKey, OpflowRpcRequest> coalescing = new ConcurrentHashMap<>();
+    
+    private boolean isCoalescing(String routineId) {
+        return routineId != null && coalescingRoutines != null && OpflowUtil.arrayContains(coalescingRoutines, routineId);
+    }
+    
+    private static class LatencyWindow {
+        private final static int SIZE = 128;
+        private final static int MIN_SAMPLES = 16;
+        private final long[] samples = new long[SIZE];
+        private int count = 0;
+        private int next = 0;
+        
+        synchronized void record(long latency) {
+            samples[next] = latency;
+            next = (next + 1) % SIZE;
+            if (count < SIZE) count++;
+        }
+        
+        /**
+         * @return the percentile of the recent latencies, or -1 while there
+         * are too few samples
+         */
+        synchronized long percentile(int percent) {
+            if (count < MIN_SAMPLES) return -1;
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percent * count / 100.0) - 1;
+            return sorted[Math.min(Math.max(index, 0), count - 1)];
+        }
+    }
+    
+    private static class Hedge {
+        private final String routineId;
+        private final long startTime = System.nanoTime();
+        private volatile OpflowWheelTimer.Timeout timer;
+        
+        Hedge(String routineId) {
+            this.routineId = routineId;
+        }
+    }
+    
+    /**
+     * The recent latencies of the hedging routines, by routineId.
+     */
+    private final ConcurrentMap<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+    
+    /**
+     * The in-flight requests of the hedging routines, by taskId.
+     */
+    private final ConcurrentMap<String, Hedge> hedges = new ConcurrentHashMap<>();
+    
+    private final Object hedgingLock = new Object();
+    private double hedgingTokens = 0;
+    
+    private boolean isHedging(String routineId) {
+        return routineId != null && hedgingRoutines != null && OpflowUtil.arrayContains(hedgingRoutines, routineId);
+    }
+    
+    /**
+     * Send a copy of the request when it has not been completed within the
+     * percentile of the recent latencies of its routine. Each request of a
+     * hedging routine earns hedgingBudget/100 of a token and each copy spends
+     * one, so the extra load is capped at hedgingBudget percents.
+     */
+    private void scheduleHedge(final String taskId, final Hedge hedge, final OpflowRpcRequest task, final byte[] body,
+            final Map<String, Object> headers, final AMQP.BasicProperties.Builder builder, final Channel channel) {
+        synchronized (hedgingLock) {
+            hedgingTokens = Math.min(hedgingTokens + hedgingBudget / 100.0, HEDGING_MAX_TOKENS);
+        }
+        LatencyWindow window = latencies.get(hedge.routineId);
+        long delay = (window != null) ? TimeUnit.NANOSECONDS.toMillis(window.percentile(hedgingPercentile)) : -1;
+        if (delay < 0) return;
+        hedge.timer = OpflowWheelTimer.getInstance().schedule(Math.max(delay, 1), new OpflowTask.Listener() {
+            @Override
+            public void handleEvent() {
+                if (task.isFinished() || hedges.get(taskId) != hedge) return;
+                synchronized (hedgingLock) {
+                    if (hedgingTokens < 1) return;
+                    hedgingTokens -= 1;
+                }
+                String hedgeTaskId = taskId + HEDGE_SUFFIX;
+                tasks.put(hedgeTaskId, task);
+                if (task.isFinished()) {
+                    // the completion listener may have missed the copy
+                    tasks.remove(hedgeTaskId);
+                    return;
+                }
+                hedgedCount.incrementAndGet();
+                exporter.incRpcInvocationEvent("rpc_master", rpcMasterId, hedge.routineId, "hedged");
+                if (logTracer.ready(LOG, "debug")) LOG.debug(logTracer
+                        .put("requestId", task.getRequestId())
+                        .put("taskId", taskId)
+                        .text("Request[${requestId}] - RpcMaster[${rpcMasterId}] - send a hedged copy of task[${taskId}]")
+                        .stringify());
+                final Map<String, Object> override = OpflowUtil.buildMap()
+                        .put("correlationId", hedgeTaskId)
+                        .toMap();
+                DEFERRED_PUBLISHER.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            engine.produce(body, new HashMap<>(headers), builder, override, channel);
+                        } catch (RuntimeException exception) {
+                            // the original request is still in flight, the copy is only an extra chance
+                            if (logTracer.ready(LOG, "error")) LOG.error(logTracer
+                                    .put("requestId", task.getRequestId())
+                                    .put("exceptionClass", exception.getClass().getName())
+                                    .put("exceptionMessage", exception.getMessage())
+                                    .text("Request[${requestId}] - RpcMaster[${rpcMasterId}] - the hedged copy could not be published")
+                                    .stringify());
+                        }
+                    }
+                });
+            }
+        });
+    }
+    
+    private void completeHedge(Hedge hedge, boolean hedgeCopy) {
+        LatencyWindow window = latencies.get(hedge.routineId);
+        if (window == null) {
+            LatencyWindow created = new LatencyWindow();
+            window = latencies.putIfAbsent(hedge.routineId, created);
+            if (window == null) window = created;
+        }
+        window.record(System.nanoTime() - hedge.startTime);
+        if (hedgeCopy) {
+            hedgeWonCount.incrementAndGet();
+            exporter.incRpcInvocationEvent("rpc_master", rpcMasterId, hedge.routineId, "hedge_won");
+        }
+    }
+    
+    private static class Batch {
+        private final String routineId;
+        private final OpflowEngine.ConsumerInfo consumerInfo;
+        private final List<Map<String, Object>> requests = new LinkedList<>();
+        private OpflowWheelTimer.Timeout timer;
+        
+        Batch(String routineId, OpflowEngine.ConsumerInfo consumerInfo) {
+            this.routineId = routineId;
+            this.consumerInfo = consumerInfo;
+        }
+    }
+    
+    /**
+     * The open batches of the batching routines, by routineId.
+     */
+    private final Map<String, Batch> batches = new HashMap<>();
+    
+    private OpflowConcurrencyLimiter getRoutineLimiter(String routineId) {
+        if (routineId == null || limiterRoutines == null || !OpflowUtil.arrayContains(limiterRoutines, routineId)) {
+            return null;
+        }
+        OpflowConcurrencyLimiter routineLimiter = routineLimiters.get(routineId);
+        if (routineLimiter == null) {
+            OpflowConcurrencyLimiter created = new OpflowConcurrencyLimiter(routineId, limiterInitialLimit, 1, limiterMaxLimit);
+            routineLimiter = routineLimiters.putIfAbsent(routineId, created);
+            if (routineLimiter == null) routineLimiter = created;
+        }
+        return routineLimiter;
+    }
+    
+    private static void releaseLimiter(OpflowConcurrencyLimiter limiter, OpflowRpcRequest task) {
+        if (limiter == null) return;
+        if (task == null || task.isCancelled()) {
+            limiter.onCancel();
+        } else if (task.isTimedOut()) {
+            limiter.onTimeout();
+        } else {
+            limiter.onReply(System.nanoTime() - task.getStartTime());
+        }
+    }
+    
+    /**
+     * The slot of a request in a limiter. It is released at most once, by the
+     * completion listener or by the sender, whichever sees it held.
+     */
+    private static class LimiterSlot {
+        private final OpflowConcurrencyLimiter limiter;
+        private final AtomicBoolean held = new AtomicBoolean(false);
+        
+        LimiterSlot(OpflowConcurrencyLimiter limiter) {
+            this.limiter = limiter;
+        }
+        
+        boolean acquire(long waitTimeout) {
+            if (limiter == null) return true;
+            if (!limiter.acquire(waitTimeout)) return false;
+            held.set(true);
+            return true;
+        }
+        
+        void release(OpflowRpcRequest task) {
+            if (held.compareAndSet(true, false)) releaseLimiter(limiter, task);
+        }
+    }
+    
+    private OpflowRequestRejectedException rejectRequest(String routineId, OpflowConcurrencyLimiter limiter, OpflowLogTracer logRequest) {
+        exporter.incRpcInvocationEvent("rpc_master", rpcMasterId, routineId, "rejected");
+        if (logRequest != null && logRequest.ready(LOG, "debug")) LOG.debug(logRequest
+                .put("limiterName", limiter.getName())
+                .put("limit", limiter.getLimit())
+                .text("Request[${requestId}] - RpcMaster[${rpcMasterId}] - rejected, limiter[${limiterName}] has reached ${limit} in-flight requests")
+                .stringify());
+        return new OpflowRequestRejectedException("The limit of in-flight requests of [" + limiter.getName() + "] has been reached");
+    }
+    
+    /**
+     * Fail a task that a limiter has rejected, together with the requests that
+     * have been coalesced into it meanwhile, and throw the rejection.
+     */
+    private void rejectTask(OpflowRpcRequest task, CoalescingKey coalescingKey, OpflowRequestRejectedException exception) {
+        if (coalescingKey != null) coalescing.remove(coalescingKey, task);
+        // the completion listener releases the slots that have been acquired
+        task.cancel(toErrorString(exception));
+        throw exception;
+    }
+    
+    /**
+     * Drop a task that has lost the race for its coalescing key; it has been
+     * neither registered nor sent.
+     */
+    private void discardTask(OpflowRpcRequest task) {
+        if (!task.discard()) return;
+        if (inflight.decrementAndGet() == 0) {
+            Thread _drainingThread = drainingThread;
+            if (_drainingThread != null) LockSupport.unpark(_drainingThread);
+        }
+    }
+    
+    private boolean isBatching(String routineId) {
+        return routineId != null && batchingRoutines != null && OpflowUtil.arrayContains(batchingRoutines, routineId);
+    }
+    
+    /**
+     * Add a request to the open batch of its routine. The batch is published
+     * when it reaches batchingMaxSize or when the batchingLinger has elapsed
+     * since its first request, whichever comes first.
+     */
+    private void enqueueBatch(String routineId, Map<String, Object> request, OpflowEngine.ConsumerInfo consumerInfo) {
+        Batch full = null;
+        synchronized (batches) {
+            Batch batch = batches.get(routineId);
+            if (batch == null) {
+                final Batch opened = new Batch(routineId, consumerInfo);
+                batches.put(routineId, opened);
+                opened.timer = OpflowWheelTimer.getInstance().schedule(batchingLinger, new OpflowTask.Listener() {
+                    @Override
+                    public void handleEvent() {
+                        synchronized (batches) {
+                            if (batches.get(opened.routineId) != opened) return;
+                            batches.remove(opened.routineId);
+                        }
+                        DEFERRED_PUBLISHER.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                publishBatch(opened);
+                            }
+                        });
+                    }
+                });
+                batch = opened;
+            }
+            batch.requests.add(request);
+            if (batch.requests.size() >= batchingMaxSize) {
+                batches.remove(routineId);
+                full = batch;
+            }
+        }
+        if (full != null) {
+            full.timer.cancel();
+            publishBatch(full);
+        }
+    }
+    
+    private void publishBatch(Batch batch) {
+        String batchId = OpflowUtil.getLogID();
+        Map<String, Object> headers = new HashMap<>();
+        headers.put("requestId", batchId);
+        headers.put("routineId", batch.routineId);
+        headers.put("batched", Boolean.TRUE);
+        headers.put("progressEnabled", Boolean.FALSE);
+        
+        AMQP.BasicProperties.Builder builder = new AMQP.BasicProperties.Builder()
+                .correlationId(batchId)
+                .replyTo(batch.consumerInfo.getQueueName());
+        if (expiration > 0) {
+            builder.expiration(String.valueOf(expiration));
+        }
+        
+        byte[] body = OpflowUtil.getBytes(OpflowJsontool.toString(OpflowUtil.buildMap()
+                .put("requests", batch.requests)
+                .toMap()));
+        
+        if (logTracer.ready(LOG, "debug")) LOG.debug(logTracer
+                .put("batchId", batchId)
+                .put("routineId", batch.routineId)
+                .put("batchSize", batch.requests.size())
+                .text("RpcMaster[${rpcMasterId}] - publish batch[${batchId}] of ${batchSize} requests of routine[${routineId}]")
+                .stringify());
+        
+        exporter.incRpcInvocationEvent("rpc_master", rpcMasterId, batch.routineId, "batch");
+        
+        if (directReplyTo) {
+            try {
+                engine.produce(body, headers, builder, null, batch.consumerInfo.getChannel());
+            } catch (RuntimeException exception) {
+                cancelBatch(batch, exception);
+            }
+        } else {
+            try {
+                engine.produce(body, headers, builder);
+            } catch (RuntimeException exception) {
+                cancelBatch(batch, exception);
+            }
+        }
+    }
+    
+    /**
+     * Fail the requests of a batch that could not be published.
+     */
+    private void cancelBatch(Batch batch, RuntimeException exception) {
+        if (logTracer.ready(LOG, "error")) LOG.error(logTracer
+                .put("routineId", batch.routineId)
+                .put("exceptionClass", exception.getClass().getName())
+                .put("exceptionMessage", exception.getMessage())
+                .text("RpcMaster[${rpcMasterId}] - a batch of routine[${routineId}] could not be published")
+                .stringify());
+        String error = toErrorString(exception);
+        for (Map<String, Object> request : batch.requests) {
+            OpflowRpcRequest task = tasks.get((String) request.get("correlationId"));
+            if (task != null) task.cancel(error);
+        }
+    }
+    
+    private static String toErrorString(Exception exception) {
+        return OpflowUtil.buildMap()
+                .put("exceptionClass", exception.getClass().getName())
+                .put("type", exception.getClass().getName())
+                .put("message", exception.getMessage())
+                .toString();
+    }
+    
     private OpflowTask.TimeoutMonitor timeoutMonitor = null;
     
     private OpflowTask.TimeoutMonitor initTimeoutMonitor() {
@@ -255,6 +957,73 @@ public class OpflowRpcMaster implements AutoCloseable {
     }
     
     public OpflowRpcRequest request(final String routineId, byte[] body, Map<String, Object> options) {
+        return send(routineId, body, options, null);
+    }
+    
+    public OpflowRpcFuture requestAsync(String routineId, String body) {
+        return requestAsync(routineId, OpflowUtil.getBytes(body), null, null);
+    }
+    
+    public OpflowRpcFuture requestAsync(String routineId, String body, Map<String, Object> options) {
+        return requestAsync(routineId, OpflowUtil.getBytes(body), options, null);
+    }
+    
+    public OpflowRpcFuture requestAsync(String routineId, byte[] body, Map<String, Object> options) {
+        return requestAsync(routineId, body, options, null);
+    }
+    
+    /**
+     * Send a request without parking a thread for its result. The returned
+     * future is completed by the callback consumer when the final message
+     * arrives, or by the timeout monitor. The progress messages are only
+     * requested from the worker when a progressListener is given (unless the
+     * progressEnabled option says otherwise).
+     */
+    public OpflowRpcFuture requestAsync(String routineId, byte[] body, Map<String, Object> options,
+            OpflowRpcFuture.ProgressListener progressListener) {
+        options = OpflowUtil.ensureNotNull(options);
+        if (!(options.get("progressEnabled") instanceof Boolean)) {
+            options.put("progressEnabled", progressListener != null);
+        }
+        Object requestIdVal = options.get("requestId");
+        if (requestIdVal == null) {
+            options.put("requestId", requestIdVal = OpflowUtil.getLogID());
+        }
+        OpflowRpcFuture future = new OpflowRpcFuture(requestIdVal.toString(), progressListener);
+        return send(routineId, body, options, future).getFuture();
+    }
+    
+    public OpflowRpcPublisher requestStream(String routineId, String body, Map<String, Object> options) {
+        return requestStream(routineId, OpflowUtil.getBytes(body), options);
+    }
+    
+    /**
+     * Send a request and stream its progress and its result to the
+     * subscribers of the returned publisher, with demand-based backpressure.
+     */
+    public OpflowRpcPublisher requestStream(String routineId, byte[] body, Map<String, Object> options) {
+        options = OpflowUtil.ensureNotNull(options);
+        Object requestIdVal = options.get("requestId");
+        if (requestIdVal == null) {
+            options.put("requestId", requestIdVal = OpflowUtil.getLogID());
+        }
+        final OpflowRpcPublisher publisher = new OpflowRpcPublisher(requestIdVal.toString());
+        OpflowRpcFuture future = requestAsync(routineId, body, options, new OpflowRpcFuture.ProgressListener() {
+            @Override
+            public void handleProgress(OpflowRpcResult.Step step) {
+                publisher.publishProgress(step);
+            }
+        });
+        future.addListener(new OpflowRpcFuture.Listener() {
+            @Override
+            public void handleResult(OpflowRpcResult result) {
+                publisher.publishResult(result);
+            }
+        });
+        return publisher;
+    }
+    
+    private OpflowRpcRequest send(final String routineId, byte[] body, Map<String, Object> options, OpflowRpcFuture future) {
         options = OpflowUtil.ensureNotNull(options);
         
         Object requestIdVal = options.get("requestId");
@@ -274,9 +1043,14 @@ public class OpflowRpcMaster implements AutoCloseable {
         }
         
         final boolean forked = "forked".equals((String)options.get("mode"));
+        
+        final boolean hedging = !forked && isHedging(routineId);
+        // the batch carries the bodies as JSON strings, a binary body is sent on its own
+        final boolean batching = !forked && isBatching(routineId) && OpflowUtil.isUTF8(body);
+        
         final OpflowEngine.ConsumerInfo consumerInfo;
         if (forked) {
-            consumerInfo = initCallbackConsumer(true);
+            consumerInfo = leaseForkedConsumer();
         } else {
             if (responseConsumer == null) {
                 responseConsumer = initCallbackConsumer(false);
@@ -284,30 +1058,49 @@ public class OpflowRpcMaster implements AutoCloseable {
             consumerInfo = responseConsumer;
         }
         
+        // the forked requests are already bounded by the forkedPoolSize
+        final LimiterSlot routineSlot = new LimiterSlot(forked ? null : getRoutineLimiter(routineId));
+        final LimiterSlot masterSlot = new LimiterSlot(forked ? null : limiter);
+        final CoalescingKey coalescingKey = (!forked && isCoalescing(routineId)) ?
+                new CoalescingKey(routineId, body != null ? body : new byte[0], options) : null;
+        
         final String taskId = OpflowUtil.getLogID();
+        // the TimeoutMonitor removes the task from the map before it raises the timeout
+        final AtomicReference<OpflowRpcRequest> taskRef = new AtomicReference<>();
         OpflowTask.Listener listener = new OpflowTask.Listener() {
-            private OpflowLogTracer logTask = null;
+            private final AtomicBoolean finished = new AtomicBoolean(false);
             @Override
             public void handleEvent() {
-                lock.lock();
-                if (logRequest != null && logRequest.ready(LOG, "debug")) logTask = logRequest.copy();
-                try {
-                    tasks.remove(taskId);
-                    if (tasks.isEmpty()) {
-                        if (forked) {
-                            engine.cancelConsumer(consumerInfo);
-                        }
-                        idle.signal();
-                    }
-                    if (logTask != null && logTask.ready(LOG, "debug")) LOG.debug(logTask
-                            .put("taskId", taskId)
-                            .put("taskListSize", tasks.size())
-                            .text("Request[${requestId}] - RpcMaster[${rpcMasterId}]"
-                                    + "- tasksize after removing task[${taskId}]: ${taskListSize}")
-                            .stringify());
-                } finally {
-                    lock.unlock();
+                // the reply and the timeout may both complete the task
+                if (!finished.compareAndSet(false, true)) return;
+                tasks.remove(taskId);
+                OpflowTask.TimeoutMonitor _timeoutMonitor = timeoutMonitor;
+                if (_timeoutMonitor != null) _timeoutMonitor.unregister(taskId);
+                routineSlot.release(taskRef.get());
+                masterSlot.release(taskRef.get());
+                if (hedging) {
+                    Hedge _hedge = hedges.remove(taskId);
+                    if (_hedge != null && _hedge.timer != null) _hedge.timer.cancel();
+                    tasks.remove(taskId + HEDGE_SUFFIX);
+                }
+                if (coalescingKey != null) {
+                    OpflowRpcRequest leader = coalescing.get(coalescingKey);
+                    if (leader != null && leader.isFinished()) coalescing.remove(coalescingKey, leader);
+                }
+                if (forked) {
+                    releaseForkedConsumer(consumerInfo);
                 }
+                int remaining = inflight.decrementAndGet();
+                if (remaining == 0) {
+                    Thread _drainingThread = drainingThread;
+                    if (_drainingThread != null) LockSupport.unpark(_drainingThread);
+                }
+                if (logRequest != null && logRequest.ready(LOG, "debug")) LOG.debug(logRequest.copy()
+                        .put("taskId", taskId)
+                        .put("taskListSize", remaining)
+                        .text("Request[${requestId}] - RpcMaster[${rpcMasterId}]"
+                                + "- tasksize after removing task[${taskId}]: ${taskListSize}")
+                        .stringify());
             }
         };
         
@@ -315,13 +1108,64 @@ public class OpflowRpcMaster implements AutoCloseable {
             options.put("timeout", expiration + DELAY_TIMEOUT);
         }
         
-        OpflowRpcRequest task = new OpflowRpcRequest(options, listener);
+        // the deadline of the task runs from here, the time spent in the limiters included
+        inflight.incrementAndGet();
+        OpflowRpcRequest task = new OpflowRpcRequest(options, listener, future);
+        taskRef.set(task);
+        
+        // the key is claimed before the limiters are acquired, so that the identical
+        // requests arriving meanwhile are coalesced into this task
+        if (coalescingKey != null) {
+            OpflowRpcRequest leader;
+            while ((leader = coalescing.putIfAbsent(coalescingKey, task)) != null) {
+                OpflowRpcRequest follower = new OpflowRpcRequest(options, null, future);
+                if (leader.attach(follower)) {
+                    discardTask(task);
+                    coalescedCount.incrementAndGet();
+                    exporter.incRpcInvocationEvent("rpc_master", rpcMasterId, routineId, "coalesced");
+                    if (logRequest != null && logRequest.ready(LOG, "debug")) LOG.debug(logRequest
+                            .put("leaderId", leader.getRequestId())
+                            .text("Request[${requestId}] - RpcMaster[${rpcMasterId}] - coalesced into the in-flight request[${leaderId}]")
+                            .stringify());
+                    return follower;
+                }
+                // the leader has just finished, its result could not be shared
+                coalescing.remove(coalescingKey, leader);
+            }
+        }
+        
+        if (!routineSlot.acquire(limiterWaitTimeout)) {
+            rejectTask(task, coalescingKey, rejectRequest(routineId, routineSlot.limiter, logRequest));
+        }
+        if (!masterSlot.acquire(limiterWaitTimeout)) {
+            rejectTask(task, coalescingKey, rejectRequest(routineId, masterSlot.limiter, logRequest));
+        }
+        if (task.isFinished()) {
+            // the deadline has passed while waiting for the limiters
+            routineSlot.release(null);
+            masterSlot.release(null);
+            return task;
+        }
+        
         tasks.put(taskId, task);
+        if (timeoutMonitor != null) {
+            timeoutMonitor.register(taskId);
+        }
+        final Hedge hedge = hedging ? new Hedge(routineId) : null;
+        if (hedge != null) {
+            hedges.put(taskId, hedge);
+        }
         
         Map<String, Object> headers = new HashMap<>();
         headers.put("requestId", task.getRequestId());
         headers.put("routineId", task.getRoutineId());
         
+        // the absolute time (epoch milliseconds) after which nobody waits for the result
+        Long deadline = (task.getTimeout() > 0) ? OpflowUtil.getCurrentTime() + task.getTimeout() : null;
+        if (deadline != null) {
+            headers.put("deadline", deadline);
+        }
+        
         if (options.containsKey("messageScope")) {
             headers.put("messageScope", options.get("messageScope"));
         }
@@ -352,7 +1196,36 @@ public class OpflowRpcMaster implements AutoCloseable {
         
         exporter.incRpcInvocationEvent("rpc_master", rpcMasterId, routineId, "request");
         
-        engine.produce(body, headers, builder);
+        try {
+            if (batching) {
+                Map<String, Object> request = new HashMap<>();
+                request.put("correlationId", taskId);
+                request.put("requestId", task.getRequestId());
+                request.put("body", OpflowUtil.getString(body));
+                if (deadline != null) {
+                    request.put("deadline", deadline);
+                }
+                if (options.get("messageScope") != null) {
+                    request.put("messageScope", options.get("messageScope"));
+                }
+                enqueueBatch(routineId, request, consumerInfo);
+            } else if (directReplyTo && !forked) {
+                engine.produce(body, headers, builder, null, consumerInfo.getChannel());
+            } else {
+                engine.produce(body, headers, builder);
+            }
+        } catch (RuntimeException exception) {
+            // the request has not been sent: no hedged copy, no follower may wait for it
+            if (hedge != null) hedges.remove(taskId);
+            if (coalescingKey != null) coalescing.remove(coalescingKey, task);
+            // the completion listener releases the task, the limiters and the forked consumer
+            task.cancel(toErrorString(exception));
+            throw exception;
+        }
+        
+        if (hedge != null) {
+            scheduleHedge(taskId, hedge, task, body, headers, builder, directReplyTo ? consumerInfo.getChannel() : null);
+        }
         
         return task;
     }
@@ -370,20 +1243,22 @@ public class OpflowRpcMaster implements AutoCloseable {
     
     @Override
     public void close() {
-        lock.lock();
-        if (logTracer.ready(LOG, "trace")) LOG.trace(logTracer
-                .text("RpcMaster[${rpcMasterId}].close() - obtain the lock")
-                .stringify());
+        drainingThread = Thread.currentThread();
         try {
             if (logTracer.ready(LOG, "trace")) LOG.trace(logTracer
-                .text("RpcMaster[${rpcMasterId}].close() - check tasks.isEmpty()? and await...")
+                .text("RpcMaster[${rpcMasterId}].close() - check the in-flight requests and await...")
                 .stringify());
-            while(!tasks.isEmpty()) idle.await();
+            while(inflight.get() > 0) {
+                // the last completion unparks this thread, the bounded park covers an early unpark
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(DELAY_TIMEOUT));
+                if (Thread.interrupted()) throw new InterruptedException();
+            }
             
             if (logTracer.ready(LOG, "trace")) LOG.trace(logTracer
                 .text("RpcMaster[${rpcMasterId}].close() - cancel responseConsumer")
                 .stringify());
             if (responseConsumer != null) engine.cancelConsumer(responseConsumer);
+            closeForkedConsumers();
             
             if (logTracer.ready(LOG, "trace")) LOG.trace(logTracer
                 .text("RpcMaster[${rpcMasterId}].close() - stop timeoutMonitor")
@@ -399,10 +1274,7 @@ public class OpflowRpcMaster implements AutoCloseable {
                 .text("RpcMaster[${rpcMasterId}].close() - an interruption has been raised")
                 .stringify());
         } finally {
-            lock.unlock();
-            if (logTracer.ready(LOG, "trace")) LOG.trace(logTracer
-                .text("RpcMaster[${rpcMasterId}].close() - lock has been released")
-                .stringify());
+            drainingThread = null;
         }
     }
     
@@ -437,6 +1309,42 @@ public class OpflowRpcMaster implements AutoCloseable {
     public Boolean getCallbackAutoDelete() {
         return responseAutoDelete;
     }
+    
+    public boolean isDirectReplyTo() {
+        return directReplyTo;
+    }
+    
+    /**
+     * @return the number of requests that have been served by an identical
+     * in-flight request instead of being sent to the workers
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+    
+    public long getHedgedCount() {
+        return hedgedCount.get();
+    }
+    
+    public long getHedgeWonCount() {
+        return hedgeWonCount.get();
+    }
+    
+    /**
+     * @return the limiter of the in-flight requests of this master, or null
+     * if it is disabled
+     */
+    public OpflowConcurrencyLimiter getConcurrencyLimiter() {
+        return limiter;
+    }
+    
+    public OpflowConcurrencyLimiter getConcurrencyLimiter(String routineId) {
+        return getRoutineLimiter(routineId);
+    }
+    
+    public boolean isBatching() {
+        return batchingRoutines != null && batchingRoutines.length > 0;
+    }
 
     @Override
     protected void finalize() throws Throwable {
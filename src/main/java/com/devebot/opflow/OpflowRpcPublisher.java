@@ -0,0 +1,208 @@
+package com.devebot.opflow;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The progress and the result of an asynchronous RPC request as a stream of
+ * events, with the Reactive Streams contract: a subscriber receives at most
+ * the number of events it has requested. The events are delivered on the
+ * thread that pushes them (the callback consumer) or on the thread that calls
+ * Subscription.request(), never concurrently for one subscription.
+ *
+ * A subscription buffers up to bufferSize events while its subscriber has no
+ * demand; when the buffer is full, the oldest progress event is dropped. The
+ * result event is never dropped and is followed by onComplete().
+ *
+ * @author drupalex
+ */
+public class OpflowRpcPublisher {
+    private final static Logger LOG = LoggerFactory.getLogger(OpflowRpcPublisher.class);
+
+    public interface Subscriber {
+        public void onSubscribe(Subscription subscription);
+        public void onNext(Event event);
+        public void onError(Throwable throwable);
+        public void onComplete();
+    }
+
+    public interface Subscription {
+        public void request(long n);
+        public void cancel();
+    }
+
+    public static class Event {
+        private final OpflowRpcResult.Step step;
+        private final OpflowRpcResult result;
+
+        Event(OpflowRpcResult.Step step, OpflowRpcResult result) {
+            this.step = step;
+            this.result = result;
+        }
+
+        public boolean isProgress() {
+            return result == null;
+        }
+
+        public OpflowRpcResult.Step getStep() {
+            return step;
+        }
+
+        public OpflowRpcResult getResult() {
+            return result;
+        }
+    }
+
+    private final String requestId;
+    private final int bufferSize;
+    private final List<StreamSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private Event resultEvent = null;
+
+    public OpflowRpcPublisher(String requestId) {
+        this(requestId, 16);
+    }
+
+    public OpflowRpcPublisher(String requestId, int bufferSize) {
+        this.requestId = requestId;
+        this.bufferSize = (bufferSize > 0) ? bufferSize : 1;
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * A subscriber that subscribes after the request has finished receives
+     * only the result event.
+     */
+    public void subscribe(Subscriber subscriber) {
+        if (subscriber == null) throw new NullPointerException("subscriber must not be null");
+        StreamSubscription subscription = new StreamSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        synchronized (this) {
+            if (resultEvent != null) {
+                subscription.enqueue(resultEvent);
+            } else {
+                subscriptions.add(subscription);
+            }
+        }
+        subscription.drain();
+    }
+
+    void publishProgress(OpflowRpcResult.Step step) {
+        Event event = new Event(step, null);
+        for (StreamSubscription subscription : subscriptions) {
+            subscription.enqueue(event);
+            subscription.drain();
+        }
+    }
+
+    void publishResult(OpflowRpcResult result) {
+        Event event = new Event(null, result);
+        List<StreamSubscription> _subscriptions;
+        synchronized (this) {
+            if (resultEvent != null) return;
+            resultEvent = event;
+            _subscriptions = new ArrayList<>(subscriptions);
+            subscriptions.clear();
+        }
+        for (StreamSubscription subscription : _subscriptions) {
+            subscription.enqueue(event);
+            subscription.drain();
+        }
+    }
+
+    private class StreamSubscription implements Subscription {
+        private final Subscriber subscriber;
+        private final ArrayDeque<Event> buffer = new ArrayDeque<>();
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled = false;
+
+        StreamSubscription(Subscriber subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("Request[" + requestId + "] - the demand must be positive, " + n + " is given"));
+                return;
+            }
+            while (true) {
+                long current = demand.get();
+                long next = current + n;
+                if (next < 0) next = Long.MAX_VALUE;
+                if (demand.compareAndSet(current, next)) break;
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+        }
+
+        void enqueue(Event event) {
+            synchronized (buffer) {
+                if (event.isProgress() && buffer.size() >= bufferSize) {
+                    Iterator<Event> iter = buffer.iterator();
+                    while (iter.hasNext()) {
+                        if (iter.next().isProgress()) {
+                            iter.remove();
+                            break;
+                        }
+                    }
+                    if (buffer.size() >= bufferSize) return;
+                }
+                buffer.add(event);
+            }
+        }
+
+        void drain() {
+            if (wip.getAndIncrement() != 0) return;
+            int missed = 1;
+            do {
+                while (!cancelled && demand.get() > 0) {
+                    Event event;
+                    synchronized (buffer) {
+                        event = buffer.poll();
+                    }
+                    if (event == null) break;
+                    if (demand.get() != Long.MAX_VALUE) demand.decrementAndGet();
+                    if (!emit(event)) break;
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private boolean emit(Event event) {
+            try {
+                subscriber.onNext(event);
+                if (!event.isProgress()) {
+                    cancelled = true;
+                    subscriber.onComplete();
+                }
+                return true;
+            } catch (RuntimeException exception) {
+                OpflowLogTracer logPublisher = OpflowLogTracer.ROOT.branch("requestId", requestId);
+                if (logPublisher.ready(LOG, "error")) LOG.error(logPublisher
+                        .put("exceptionClass", exception.getClass().getName())
+                        .put("exceptionMessage", exception.getMessage())
+                        .text("Request[${requestId}] - subscriber has failed, exception[${exceptionClass}]: ${exceptionMessage}")
+                        .stringify());
+                cancel();
+                return false;
+            }
+        }
+    }
+}
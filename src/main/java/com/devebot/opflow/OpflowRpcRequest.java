@@ -1,6 +1,7 @@
 package com.devebot.opflow;
 
 import com.devebot.opflow.exception.OpflowJsonTransformationException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -22,10 +23,26 @@ public class OpflowRpcRequest implements Iterator, OpflowTask.Timeoutable {
     private final String routineId;
     private final long timeout;
     private final OpflowTask.Listener completeListener;
-    private OpflowTask.TimeoutWatcher timeoutWatcher;
+    private final OpflowRpcFuture future;
+    private OpflowTask.Listener timeoutListener;
+    private volatile OpflowWheelTimer.Timeout deadline;
     private long timestamp;
+    private final long startTime = System.nanoTime();
+    private List<OpflowRpcRequest> followers = null;
+    private boolean finished = false;
+    private boolean timedOut = false;
+    private boolean cancelled = false;
     
     public OpflowRpcRequest(Map<String, Object> options, final OpflowTask.Listener completeListener) {
+        this(options, completeListener, null);
+    }
+    
+    /**
+     * @param future the asynchronous result of the request; when it is given,
+     * the messages are resolved into the future as soon as they are pushed
+     * instead of being queued for the iterator
+     */
+    public OpflowRpcRequest(Map<String, Object> options, final OpflowTask.Listener completeListener, OpflowRpcFuture future) {
         Map<String, Object> opts = OpflowUtil.ensureNotNull(options);
         this.requestId = OpflowUtil.getRequestId(opts);
         this.routineId = OpflowUtil.getRoutineId(opts);
@@ -40,8 +57,9 @@ public class OpflowRpcRequest implements Iterator, OpflowTask.Timeoutable {
         }
         logTracer = OpflowLogTracer.ROOT.branch("requestId", requestId, new OpflowLogTracer.OmitPingLogs(options));
         this.completeListener = completeListener;
+        this.future = future;
         if (Boolean.TRUE.equals(opts.get("watcherEnabled")) && completeListener != null && this.timeout > 0) {
-            timeoutWatcher = new OpflowTask.TimeoutWatcher(requestId, this.timeout, new OpflowTask.Listener() {
+            timeoutListener = new OpflowTask.Listener() {
                 @Override
                 public void handleEvent() {
                     OpflowLogTracer logWatcher = null;
@@ -51,14 +69,11 @@ public class OpflowRpcRequest implements Iterator, OpflowTask.Timeoutable {
                     if (logWatcher != null && logWatcher.ready(LOG, "debug")) LOG.debug(logWatcher
                             .text("Request[${requestId}] timeout event has been raised")
                             .stringify());
-                    list.add(OpflowMessage.ERROR);
-                    if (logWatcher != null && logWatcher.ready(LOG, "debug")) LOG.debug(logWatcher
-                            .text("Request[${requestId}] raise completeListener (timeout)")
-                            .stringify());
-                    completeListener.handleEvent();
+                    // the ERROR message is a failed one, it completes the request and its followers
+                    push(OpflowMessage.ERROR);
                 }
-            });
-            timeoutWatcher.start();
+            };
+            deadline = OpflowWheelTimer.getInstance().schedule(this.timeout, timeoutListener);
         }
         checkTimestamp();
     }
@@ -70,6 +85,63 @@ public class OpflowRpcRequest implements Iterator, OpflowTask.Timeoutable {
     public String getRoutineId() {
         return routineId;
     }
+    
+    public OpflowRpcFuture getFuture() {
+        return future;
+    }
+    
+    /**
+     * @return the System.nanoTime() when the request has been created
+     */
+    long getStartTime() {
+        return startTime;
+    }
+    
+    /**
+     * @return true if the request has been finished by its deadline rather
+     * than by a reply
+     */
+    synchronized boolean isTimedOut() {
+        return timedOut;
+    }
+    
+    /**
+     * Fail a request that could not be sent; the future and the followers
+     * receive the failure as if the worker had replied it.
+     * 
+     * @param error the JSON error of the failed message
+     */
+    void cancel(String error) {
+        synchronized (this) {
+            if (finished) return;
+            cancelled = true;
+        }
+        push(new OpflowMessage(OpflowUtil.getBytes(error), OpflowUtil.buildMap()
+                .put("status", "failed")
+                .toMap()));
+    }
+    
+    /**
+     * Drop a request that will never be sent, without raising its listener.
+     * 
+     * @return false if the request had already finished (i.e. timed out)
+     */
+    boolean discard() {
+        synchronized (this) {
+            if (finished) return false;
+            finished = true;
+        }
+        OpflowWheelTimer.Timeout _deadline = deadline;
+        if (_deadline != null) _deadline.cancel();
+        return true;
+    }
+    
+    /**
+     * @return true if the request has been failed locally, without being sent
+     */
+    synchronized boolean isCancelled() {
+        return cancelled;
+    }
 
     @Override
     public long getTimeout() {
@@ -87,6 +159,24 @@ public class OpflowRpcRequest implements Iterator, OpflowTask.Timeoutable {
         this.push(OpflowMessage.ERROR);
     }
     
+    /**
+     * Attach a coalesced request to this one: the follower receives every
+     * message pushed into this request from now on, including the final one.
+     * 
+     * @return false if this request has already finished, the follower must
+     * then be sent on its own
+     */
+    public synchronized boolean attach(OpflowRpcRequest follower) {
+        if (finished) return false;
+        if (followers == null) followers = new ArrayList<>(2);
+        followers.add(follower);
+        return true;
+    }
+    
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+    
     private final BlockingQueue<OpflowMessage> list = new LinkedBlockingQueue<>();
     private OpflowMessage current = null;
     
@@ -110,12 +200,37 @@ public class OpflowRpcRequest implements Iterator, OpflowTask.Timeoutable {
     }
     
     public void push(OpflowMessage message) {
-        list.add(message);
-        if (timeoutWatcher != null) {
-            timeoutWatcher.check();
+        boolean done = isDone(message);
+        List<OpflowRpcRequest> _followers;
+        synchronized (this) {
+            // the late messages (i.e. the reply of a hedged copy) are dropped
+            if (finished) return;
+            if (followers == null) {
+                _followers = null;
+            } else {
+                _followers = done ? followers : new ArrayList<>(followers);
+            }
+            if (done) {
+                finished = true;
+                // only the deadlines push the ERROR message
+                timedOut = (message == OpflowMessage.ERROR);
+            }
+        }
+        if (future == null) {
+            list.add(message);
+        } else if (!done) {
+            resolve(message);
+        }
+        // a progress message re-arms the deadline of the request
+        OpflowWheelTimer.Timeout _deadline = deadline;
+        if (!done && _deadline != null && _deadline.cancel()) {
+            deadline = OpflowWheelTimer.getInstance().schedule(this.timeout, timeoutListener);
         }
         checkTimestamp();
-        if(isDone(message)) {
+        if(done) {
+            if (_deadline != null) {
+                _deadline.cancel();
+            }
             OpflowLogTracer pushTrail = null;
             if (logTracer.ready(LOG, "debug")) {
                 pushTrail = logTracer.copy();
@@ -123,19 +238,53 @@ public class OpflowRpcRequest implements Iterator, OpflowTask.Timeoutable {
             if (pushTrail != null && pushTrail.ready(LOG, "debug")) LOG.debug(pushTrail
                     .text("Request[${requestId}] has completed/failed message")
                     .stringify());
-            list.add(OpflowMessage.EMPTY);
+            if (future == null) {
+                list.add(OpflowMessage.EMPTY);
+            }
             if (completeListener != null) {
                 if (pushTrail != null && pushTrail.ready(LOG, "debug")) LOG.debug(pushTrail
                         .text("Request[${requestId}] raises completeListener (completed)")
                         .stringify());
                 completeListener.handleEvent();
             }
-            if (timeoutWatcher != null) {
-                timeoutWatcher.close();
+            if (future != null) {
+                resolve(message);
+            }
+        }
+        if (_followers != null) {
+            for (OpflowRpcRequest follower : _followers) {
+                follower.push(message);
             }
         }
     }
     
+    private void resolve(OpflowMessage msg) {
+        // the same result as extractResult(), that stops at the ERROR message
+        if (msg == OpflowMessage.ERROR) {
+            future.complete(new OpflowRpcResult(routineId, requestId, null, null, false, null, false, null));
+            return;
+        }
+        String status = getStatus(msg);
+        if (status == null) return;
+        switch (status) {
+            case "progress":
+                if (future.isProgressEnabled()) {
+                    future.progress(extractStep(msg));
+                }
+                break;
+            case "failed":
+                future.complete(new OpflowRpcResult(routineId, requestId, OpflowUtil.getMessageField(msg, "workerTag"),
+                        null, true, msg.getBody(), false, null));
+                break;
+            case "completed":
+                future.complete(new OpflowRpcResult(routineId, requestId, OpflowUtil.getMessageField(msg, "workerTag"),
+                        null, false, null, true, msg.getBody()));
+                break;
+            default:
+                break;
+        }
+    }
+    
     public List<OpflowMessage> iterateResult() {
         List<OpflowMessage> buff = new LinkedList<>();
         while(this.hasNext()) buff.add(this.next());
@@ -168,12 +317,7 @@ public class OpflowRpcRequest implements Iterator, OpflowTask.Timeoutable {
             switch (status) {
                 case "progress":
                     if (includeProgress) {
-                        try {
-                            int percent = OpflowJsontool.extractFieldAsInt(msg.getBodyAsString(), "percent");
-                            steps.add(new OpflowRpcResult.Step(percent));
-                        } catch (OpflowJsonTransformationException jse) {
-                            steps.add(new OpflowRpcResult.Step());
-                        }
+                        steps.add(extractStep(msg));
                     }   break;
                 case "failed":
                     workerTag = OpflowUtil.getMessageField(msg, "workerTag");
@@ -204,6 +348,15 @@ public class OpflowRpcRequest implements Iterator, OpflowTask.Timeoutable {
         return STATUS.indexOf(status) >= 0;
     }
     
+    private static OpflowRpcResult.Step extractStep(OpflowMessage msg) {
+        try {
+            int percent = OpflowJsontool.extractFieldAsInt(msg.getBodyAsString(), "percent");
+            return new OpflowRpcResult.Step(percent);
+        } catch (OpflowJsonTransformationException jse) {
+            return new OpflowRpcResult.Step();
+        }
+    }
+    
     private void checkTimestamp() {
         timestamp = OpflowUtil.getCurrentTime();
     }
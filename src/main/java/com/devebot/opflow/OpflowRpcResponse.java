@@ -3,8 +3,11 @@ package com.devebot.opflow;
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.devebot.opflow.exception.OpflowOperationException;
@@ -23,9 +26,28 @@ public class OpflowRpcResponse {
     private final String requestId;
     private final String messageScope;
     private final Boolean progressEnabled;
+    private final Batch batch;
+    private final String rpcWorkerId;
+    private final String routineId;
+    private final long receivedTime = System.nanoTime();
+    private final AtomicBoolean replied = new AtomicBoolean(false);
     
     public OpflowRpcResponse(Channel channel, AMQP.BasicProperties properties, String workerTag, String replyQueueName) {
+        this(channel, properties, workerTag, replyQueueName, null, null);
+    }
+    
+    /**
+     * @param batch collects the final reply of a request that has been
+     * unpacked from a batch envelope, instead of publishing it
+     * @param rpcWorkerId records the processing time (from the creation of the
+     * response to the final emit) of the routine for this worker
+     */
+    OpflowRpcResponse(Channel channel, AMQP.BasicProperties properties, String workerTag, String replyQueueName,
+            Batch batch, String rpcWorkerId) {
         this.channel = channel;
+        this.batch = batch;
+        this.rpcWorkerId = rpcWorkerId;
+        this.routineId = OpflowUtil.getRoutineId(properties.getHeaders(), false);
         this.properties = properties;
         this.workerTag = workerTag;
         this.requestId = OpflowUtil.getRequestId(properties.getHeaders(), false);
@@ -119,8 +141,11 @@ public class OpflowRpcResponse {
     }
     
     public void emitFailed(byte[] error) {
+        // a batch counts one final reply per request, the extra ones are dropped
+        if (!replied.compareAndSet(false, true) && batch != null) return;
         if (error == null) error = new byte[0];
         basicPublish(error, createProperties(properties, createHeaders("failed", true)).build());
+        observeProcessingTime();
         if (logTracer.ready(LOG, "trace")) LOG.trace(logTracer
                 .put("bodyLength", error.length)
                 .text("Request[${requestId}] - emitFailed()")
@@ -132,14 +157,29 @@ public class OpflowRpcResponse {
     }
 
     public void emitCompleted(byte[] result) {
+        if (!replied.compareAndSet(false, true) && batch != null) return;
         if (result == null) result = new byte[0];
         basicPublish(result, createProperties(properties, createHeaders("completed", true)).build());
+        observeProcessingTime();
         if (logTracer.ready(LOG, "trace")) LOG.trace(logTracer
                 .put("bodyLength", result.length)
                 .text("Request[${requestId}] - emitCompleted()")
                 .stringify());
     }
 
+    /**
+     * @return true if the final reply (completed or failed) has been emitted
+     */
+    boolean isReplied() {
+        return replied.get();
+    }
+
+    private void observeProcessingTime() {
+        if (rpcWorkerId == null) return;
+        OpflowExporter.getInstance().observeRpcLatency("rpc_worker", rpcWorkerId, routineId, "processing",
+                System.nanoTime() - receivedTime);
+    }
+    
     private AMQP.BasicProperties.Builder createProperties(AMQP.BasicProperties properties, Map<String, Object> headers) {
         AMQP.BasicProperties.Builder builder = new AMQP.BasicProperties.Builder()
             .headers(headers)
@@ -170,10 +210,72 @@ public class OpflowRpcResponse {
     }
     
     private void basicPublish(byte[] data, AMQP.BasicProperties replyProps) {
+        if (batch != null) {
+            batch.add(data, replyProps);
+            return;
+        }
         try {
             channel.basicPublish("", replyQueueName, replyProps, data);
         } catch (IOException exception) {
             throw new OpflowOperationException(exception);
         }
     }
+    
+    /**
+     * The replies of the requests of a batch envelope. The started/progress
+     * messages are dropped, the final messages are collected and published in
+     * one message (correlated with the envelope) when the last one arrives.
+     */
+    static class Batch {
+        private final Channel channel;
+        private final AMQP.BasicProperties properties;
+        private final String replyQueueName;
+        private final int size;
+        private final List<Map<String, Object>> replies = new ArrayList<>();
+        
+        Batch(Channel channel, AMQP.BasicProperties properties, String replyQueueName, int size) {
+            this.channel = channel;
+            this.properties = properties;
+            this.replyQueueName = (properties.getReplyTo() != null) ? properties.getReplyTo() : replyQueueName;
+            this.size = size;
+        }
+        
+        void add(byte[] data, AMQP.BasicProperties replyProps) {
+            Map<String, Object> headers = replyProps.getHeaders();
+            String status = OpflowUtil.getOptionField(headers, "status", false);
+            if (!"completed".equals(status) && !"failed".equals(status)) return;
+            Map<String, Object> reply = new HashMap<>(headers);
+            reply.put("correlationId", replyProps.getCorrelationId());
+            reply.put("body", OpflowUtil.getString(data));
+            List<Map<String, Object>> _replies = null;
+            synchronized (this) {
+                replies.add(reply);
+                if (replies.size() == size) _replies = replies;
+            }
+            if (_replies != null) publish(_replies);
+        }
+        
+        private void publish(List<Map<String, Object>> _replies) {
+            Map<String, Object> headers = new HashMap<>();
+            headers.put("batched", Boolean.TRUE);
+            String requestId = OpflowUtil.getRequestId(properties.getHeaders(), false);
+            if (requestId != null) {
+                headers.put("requestId", requestId);
+            }
+            AMQP.BasicProperties.Builder builder = new AMQP.BasicProperties.Builder()
+                .headers(headers)
+                .correlationId(properties.getCorrelationId());
+            if (properties.getAppId() != null) {
+                builder.appId(properties.getAppId());
+            }
+            byte[] body = OpflowUtil.getBytes(OpflowJsontool.toString(OpflowUtil.buildMap()
+                    .put("replies", _replies)
+                    .toMap()));
+            try {
+                channel.basicPublish("", replyQueueName, builder.build(), body);
+            } catch (IOException exception) {
+                throw new OpflowOperationException(exception);
+            }
+        }
+    }
 }
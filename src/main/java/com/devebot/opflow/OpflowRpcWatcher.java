@@ -4,6 +4,9 @@ import com.devebot.opflow.supports.OpflowConverter;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,6 +30,13 @@ public class OpflowRpcWatcher implements AutoCloseable {
     
     private boolean congested = false;
     
+    private final int breakerFailureRate;
+    private final int breakerMinimumCalls;
+    private final long breakerWindow;
+    private final long breakerOpenDuration;
+    private final int breakerTrialCalls;
+    private final ConcurrentMap<String, OpflowCircuitBreaker> breakers = new ConcurrentHashMap<>();
+    
     public OpflowRpcWatcher(OpflowRpcChecker _rpcChecker) {
         this(_rpcChecker, null);
     }
@@ -36,10 +46,20 @@ public class OpflowRpcWatcher implements AutoCloseable {
             instanceId = OpflowUtil.getLogID();
             enabled = true;
             interval = RPC_DETECTION_INTERVAL;
+            breakerFailureRate = 50;
+            breakerMinimumCalls = 10;
+            breakerWindow = 10000;
+            breakerOpenDuration = RPC_DETECTION_INTERVAL;
+            breakerTrialCalls = 3;
         } else {
             instanceId = OpflowUtil.getOptionField(kwargs, "instanceId", true);
             enabled = OpflowConverter.convert(OpflowUtil.getOptionField(kwargs, "enabled", Boolean.TRUE), Boolean.class);
             interval = OpflowConverter.convert(OpflowUtil.getOptionField(kwargs, "interval", RPC_DETECTION_INTERVAL), Long.class);
+            breakerFailureRate = OpflowConverter.convert(OpflowUtil.getOptionField(kwargs, "breakerFailureRate", 50), Integer.class);
+            breakerMinimumCalls = OpflowConverter.convert(OpflowUtil.getOptionField(kwargs, "breakerMinimumCalls", 10), Integer.class);
+            breakerWindow = OpflowConverter.convert(OpflowUtil.getOptionField(kwargs, "breakerWindow", 10000l), Long.class);
+            breakerOpenDuration = OpflowConverter.convert(OpflowUtil.getOptionField(kwargs, "breakerOpenDuration", RPC_DETECTION_INTERVAL), Long.class);
+            breakerTrialCalls = OpflowConverter.convert(OpflowUtil.getOptionField(kwargs, "breakerTrialCalls", 3), Integer.class);
         }
         
         logTracer = OpflowLogTracer.ROOT.branch("rpcWatcherId", instanceId);
@@ -77,6 +97,28 @@ public class OpflowRpcWatcher implements AutoCloseable {
         congested = _congested;
     }
     
+    /**
+     * @return the circuit breaker of the routine, created on the first call
+     */
+    public OpflowCircuitBreaker getCircuitBreaker(String routineId) {
+        OpflowCircuitBreaker breaker = breakers.get(routineId);
+        if (breaker == null) {
+            OpflowCircuitBreaker created = new OpflowCircuitBreaker(routineId, breakerFailureRate,
+                    breakerMinimumCalls, breakerWindow, breakerOpenDuration, breakerTrialCalls);
+            breaker = breakers.putIfAbsent(routineId, created);
+            if (breaker == null) breaker = created;
+        }
+        return breaker;
+    }
+    
+    public Map<String, OpflowCircuitBreaker.State> getCircuitBreakerStates() {
+        Map<String, OpflowCircuitBreaker.State> states = new TreeMap<>();
+        for (OpflowCircuitBreaker breaker : breakers.values()) {
+            states.put(breaker.getRoutineId(), breaker.getState());
+        }
+        return states;
+    }
+    
     public void start() {
         if (logTracer.ready(LOG, "debug")) LOG.debug(logTracer
                 .text("Detector[${rpcWatcherId}].start()")
@@ -1,14 +1,19 @@
 package com.devebot.opflow;
 
 import com.devebot.opflow.exception.OpflowBootstrapException;
+import com.devebot.opflow.exception.OpflowOperationException;
+import com.devebot.opflow.exception.OpflowRequestTimeoutException;
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,6 +32,12 @@ public class OpflowRpcWorker implements AutoCloseable {
     private final String rpcWorkerId;
     private final String operatorName;
     private final String responseName;
+    private int prefetch = 0;
+    private int consumerCount = 1;
+    private boolean expiredReplyEnabled = false;
+    private final Map<String, Object> prefetchOptions = new HashMap<>();
+    private final Map<String, Object> processingOptions = new HashMap<>();
+    private final Map<String, Object> ackOptions = new HashMap<>();
     
     public OpflowRpcWorker(Map<String, Object> params) throws OpflowBootstrapException {
         params = OpflowUtil.ensureNotNull(params);
@@ -54,19 +65,36 @@ public class OpflowRpcWorker implements AutoCloseable {
         engine = new OpflowEngine(brokerParams);
         executor = new OpflowExecutor(engine);
         
-        if (operatorName != null) {
-            executor.assertQueue(operatorName);
+        executor.declareTopology(new OpflowExecutor.Topology()
+                .queue(operatorName)
+                .queue(responseName));
+        
+        if (params.get("prefetch") instanceof Integer) {
+            prefetch = (Integer) params.get("prefetch");
+            if (prefetch < 0) prefetch = 0;
+        }
+        
+        if (params.get("consumerCount") instanceof Integer) {
+            consumerCount = (Integer) params.get("consumerCount");
+            if (consumerCount < 1) consumerCount = 1;
         }
         
-        if (responseName != null) {
-            executor.assertQueue(responseName);
+        if (params.get("expiredReplyEnabled") instanceof Boolean) {
+            expiredReplyEnabled = (Boolean) params.get("expiredReplyEnabled");
         }
         
+        OpflowUtil.copyParameters(prefetchOptions, params, OpflowPrefetchController.PARAMETER_NAMES);
+        OpflowUtil.copyParameters(processingOptions, params, OpflowProcessingExecutor.PARAMETER_NAMES);
+        OpflowUtil.copyParameters(ackOptions, params, OpflowAckCoalescer.PARAMETER_NAMES);
+        
         if (logTracer.ready(LOG, "info")) LOG.info(logTracer
                 .put("operatorName", operatorName)
                 .put("responseName", responseName)
+                .put("prefetch", prefetch)
+                .put("consumerCount", consumerCount)
+                .put("expiredReplyEnabled", expiredReplyEnabled)
                 .tags("RpcWorker.new() parameters")
-                .text("RpcWorker[${rpcWorkerId}].new() operatorName: '${operatorName}', responseName: '${responseName}'")
+                .text("RpcWorker[${rpcWorkerId}].new() operatorName: '${operatorName}', responseName: '${responseName}', consumerCount: ${consumerCount}")
                 .stringify());
         
         exporter = OpflowExporter.getInstance();
@@ -132,8 +160,6 @@ public class OpflowRpcWorker implements AutoCloseable {
                     Channel channel,
                     String workerTag
             ) throws IOException {
-                OpflowMessage request = new OpflowMessage(body, properties.getHeaders());
-                OpflowRpcResponse response = new OpflowRpcResponse(channel, properties, workerTag, queueName);
                 String routineId = OpflowUtil.getRoutineId(properties.getHeaders(), false);
                 String requestId = OpflowUtil.getRequestId(properties.getHeaders(), false);
 
@@ -146,14 +172,19 @@ public class OpflowRpcWorker implements AutoCloseable {
                         .put("routineId", routineId)
                         .text("Request[${requestId}] - Consumer[${consumerId}] receives a new RPC request")
                         .stringify());
-                int count = 0;
-                for(Middleware middleware : middlewares) {
-                    if (middleware.getChecker().match(routineId)) {
-                        count++;
-                        exporter.incRpcInvocationEvent("rpc_worker", rpcWorkerId, routineId, "process");
-                        Boolean nextAction = middleware.getListener().processMessage(request, response);
-                        if (nextAction == null || nextAction == OpflowRpcListener.DONE) break;
+                observeQueueWait(routineId, properties.getHeaders());
+                
+                int count;
+                if (properties.getHeaders() != null && Boolean.TRUE.equals(properties.getHeaders().get("batched"))) {
+                    count = processBatch(routineId, body, properties, queueName, channel, workerTag);
+                } else {
+                    OpflowRpcResponse response = new OpflowRpcResponse(channel, properties, workerTag, queueName, null, rpcWorkerId);
+                    if (isExpired(properties.getHeaders())) {
+                        dropExpired(routineId, requestId, response, expiredReplyEnabled);
+                        return true;
                     }
+                    OpflowMessage request = new OpflowMessage(body, properties.getHeaders());
+                    count = dispatch(routineId, request, response);
                 }
                 if (logRequest != null && logRequest.ready(LOG, "info")) LOG.info(logRequest
                         .text("Request[${requestId}] - RPC request processing has completed")
@@ -167,6 +198,16 @@ public class OpflowRpcWorker implements AutoCloseable {
                 opts.put("queueName", operatorName);
                 opts.put("replyTo", responseName);
                 opts.put("binding", Boolean.TRUE);
+                if (prefetch > 0) opts.put("prefetch", prefetch);
+                if (consumerCount > 1) opts.put("consumerCount", consumerCount);
+                opts.putAll(prefetchOptions);
+                opts.putAll(processingOptions);
+                opts.putAll(ackOptions);
+                // the requests waiting in the processing pool stay unacked, bounded by the prefetch;
+                // the adaptive prefetch and the coalesced acks have no effect on an autoAck consumer
+                opts.put("autoAck", !OpflowProcessingExecutor.isConfigured(processingOptions) &&
+                        !OpflowPrefetchController.isConfigured(prefetchOptions) &&
+                        !OpflowAckCoalescer.isConfigured(ackOptions));
             }
         }).toMap());
         if (logProcess.ready(LOG, "info")) LOG.info(logProcess
@@ -175,6 +216,150 @@ public class OpflowRpcWorker implements AutoCloseable {
         return consumerInfo;
     }
     
+    /**
+     * Record the time that the request has spent in the broker, from the
+     * publishedTime header (millisecond precision, subject to the clock skew
+     * between the master and the worker hosts).
+     */
+    private void observeQueueWait(String routineId, Map<String, Object> headers) {
+        Object publishedTime = (headers != null) ? headers.get("publishedTime") : null;
+        if (publishedTime == null) return;
+        Date published = OpflowUtil.fromISO8601UTC(publishedTime.toString());
+        if (published == null) return;
+        long waited = OpflowUtil.getCurrentTime() - published.getTime();
+        exporter.observeRpcLatency("rpc_worker", rpcWorkerId, routineId, "queue_wait", TimeUnit.MILLISECONDS.toNanos(Math.max(waited, 0)));
+    }
+    
+    /**
+     * @return true if the deadline header (stamped by the RpcMaster) has
+     * passed, i.e. the caller has already given up on the result. As for the
+     * queue_wait, the comparison is subject to the clock skew between hosts.
+     */
+    private static boolean isExpired(Map<String, Object> headers) {
+        Object deadline = (headers != null) ? headers.get("deadline") : null;
+        if (deadline instanceof Number) {
+            return ((Number) deadline).longValue() < OpflowUtil.getCurrentTime();
+        }
+        if (deadline != null) {
+            try {
+                return Long.parseLong(deadline.toString()) < OpflowUtil.getCurrentTime();
+            } catch (NumberFormatException exception) {
+                return false;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Drop an expired request before the middlewares, replying with a fast
+     * failure when the reply is enabled.
+     */
+    private void dropExpired(String routineId, Object requestId, OpflowRpcResponse response, boolean replied) {
+        exporter.incRpcDroppedRequest("rpc_worker", rpcWorkerId, routineId, "expired");
+        if (logTracer.ready(LOG, "debug")) LOG.debug(logTracer
+                .put("routineId", routineId)
+                .put("requestId", requestId)
+                .text("RpcWorker[${rpcWorkerId}] drops the expired request[${requestId}] of routine[${routineId}]")
+                .stringify());
+        if (replied) {
+            response.emitFailed(OpflowUtil.buildMap()
+                    .put("type", OpflowRequestTimeoutException.class.getName())
+                    .put("message", "The deadline of the request has passed before its processing")
+                    .put("expired", Boolean.TRUE)
+                    .toString());
+        }
+    }
+    
+    private int dispatch(String routineId, OpflowMessage request, OpflowRpcResponse response) throws IOException {
+        int count = 0;
+        for(Middleware middleware : middlewares) {
+            if (middleware.getChecker().match(routineId)) {
+                count++;
+                exporter.incRpcInvocationEvent("rpc_worker", rpcWorkerId, routineId, "process");
+                Boolean nextAction = middleware.getListener().processMessage(request, response);
+                if (nextAction == null || nextAction == OpflowRpcListener.DONE) break;
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Unpack a batch envelope (the requests of one routine packed by the
+     * RpcMaster), run each request through the middlewares, and reply with one
+     * message that carries the final results of all of them.
+     */
+    private int processBatch(String routineId, byte[] body, AMQP.BasicProperties properties,
+            String queueName, Channel channel, String workerTag) throws IOException {
+        BatchRequests envelope = OpflowJsontool.toObject(OpflowUtil.getString(body), BatchRequests.class);
+        if (envelope == null || envelope.requests == null) return 0;
+        // the batch reply waits for one reply per request, so only the requests that can be answered are counted
+        List<Map<String, Object>> items = new ArrayList<>();
+        for (Map<String, Object> item : envelope.requests) {
+            if (item != null && item.get("correlationId") instanceof String) items.add(item);
+        }
+        if (items.isEmpty()) return 0;
+        if (logTracer.ready(LOG, "debug")) LOG.debug(logTracer
+                .put("routineId", routineId)
+                .put("batchSize", items.size())
+                .text("RpcWorker[${rpcWorkerId}] unpacks a batch of ${batchSize} requests of routine[${routineId}]")
+                .stringify());
+        OpflowRpcResponse.Batch batch = new OpflowRpcResponse.Batch(channel, properties, queueName, items.size());
+        int count = 0;
+        for (Map<String, Object> item : items) {
+            Map<String, Object> headers = new HashMap<>();
+            headers.put("routineId", routineId);
+            headers.put("requestId", item.get("requestId"));
+            headers.put("progressEnabled", Boolean.FALSE);
+            if (item.get("messageScope") != null) {
+                headers.put("messageScope", item.get("messageScope"));
+            }
+            if (item.get("deadline") != null) {
+                headers.put("deadline", item.get("deadline"));
+            }
+            AMQP.BasicProperties itemProperties = properties.builder()
+                    .headers(headers)
+                    .correlationId((String) item.get("correlationId"))
+                    .build();
+            OpflowRpcResponse response = new OpflowRpcResponse(channel, itemProperties, workerTag, queueName, batch, rpcWorkerId);
+            if (isExpired(headers)) {
+                // the batch reply waits for one reply per request, the expired ones are always answered
+                dropExpired(routineId, item.get("requestId"), response, true);
+                count++;
+                continue;
+            }
+            try {
+                Object itemBody = item.get("body");
+                OpflowMessage request = new OpflowMessage(OpflowUtil.getBytes(itemBody != null ? itemBody.toString() : null), headers);
+                int matched = dispatch(routineId, request, response);
+                count += matched;
+                if (!response.isReplied()) {
+                    // the middlewares of a batched routine must reply before they return
+                    response.emitFailed(OpflowUtil.buildMap()
+                            .put("type", OpflowOperationException.class.getName())
+                            .put("message", (matched == 0) ? "No middleware matches the routine[" + routineId + "]" :
+                                    "The request of routine[" + routineId + "] has not been replied")
+                            .toString());
+                }
+            } catch (IOException | RuntimeException exception) {
+                if (logTracer.ready(LOG, "error")) LOG.error(logTracer
+                        .put("requestId", item.get("requestId"))
+                        .put("exceptionClass", exception.getClass().getName())
+                        .put("exceptionMessage", exception.getMessage())
+                        .text("RpcWorker[${rpcWorkerId}] request[${requestId}] of a batch has failed")
+                        .stringify());
+                response.emitFailed(OpflowUtil.buildMap()
+                        .put("type", exception.getClass().getName())
+                        .put("message", exception.getMessage())
+                        .toString());
+            }
+        }
+        return count;
+    }
+    
+    private static class BatchRequests {
+        private List<Map<String, Object>> requests;
+    }
+    
     public class State extends OpflowEngine.State {
         public State(OpflowEngine.State superState) {
             super(superState);
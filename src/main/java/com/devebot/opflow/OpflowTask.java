@@ -1,8 +1,13 @@
 package com.devebot.opflow;
 
+import java.util.Iterator;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -85,6 +90,15 @@ public class OpflowTask {
         void raiseTimeout();
     }
     
+    /**
+     * Expires the tasks of a map in the order of their deadlines. The deadline
+     * of a task (its timestamp plus its timeout) is indexed when the task is
+     * registered; when an entry is due, the deadline is computed again from
+     * the current timestamp of the task, so a task that has moved forward (a
+     * progress message has arrived) is re-indexed instead of being expired.
+     * The entries of the tasks that have been removed from the map are
+     * dropped when they are due.
+     */
     public static class TimeoutMonitor {
         private final static Logger LOG = LoggerFactory.getLogger(TimeoutMonitor.class);
         private final OpflowLogTracer logTracer;
@@ -92,55 +106,37 @@ public class OpflowTask {
         private final String monitorId;
         private final Map<String, ? extends Timeoutable> tasks;
         private final int interval;
-        private final Timer timer = new Timer(true);
-        private final TimerTask timerTask = new TimerTask() {
+        private final static int PURGE_THRESHOLD = 1024;
+        private final DelayQueue<Deadline> deadlines = new DelayQueue<>();
+        private final ConcurrentMap<String, Deadline> registered = new ConcurrentHashMap<>();
+        private final AtomicInteger unregisteredCount = new AtomicInteger();
+        private final Thread worker;
+        private volatile boolean running = false;
+        
+        private static class Deadline implements Delayed {
+            private final String key;
+            private final long deadline;
+            
+            Deadline(String key, long deadline) {
+                this.key = key;
+                this.deadline = deadline;
+            }
+            
             @Override
-            public void run() {
-                if (tasks == null || tasks.isEmpty()) return;
-                long current = OpflowUtil.getCurrentTime();
-                OpflowLogTracer logTask = logTracer.branch("timestamp", current);
-                if (logTask.ready(LOG, "debug")) LOG.debug(logTask
-                        .put("taskListSize", tasks.size())
-                        .put("threadCount", Thread.activeCount())
-                        .text("Monitor[${monitorId}].run(), tasks: ${taskListSize}, threads: ${threadCount}")
-                        .stringify());
-                for (String key : tasks.keySet()) {
-                    if (logTask.ready(LOG, "trace")) LOG.trace(logTask
-                            .put("taskId", key)
-                            .text("run() examine the task[${taskId}]")
-                            .stringify());
-                    Timeoutable task = tasks.get(key);
-                    if (task == null) continue;
-                    long _timeout = task.getTimeout();
-                    if (_timeout <= 0) _timeout = timeout;
-                    if (logTask.ready(LOG, "trace")) LOG.trace(logTask
-                            .put("taskId", key)
-                            .put("monitorTimeout", timeout)
-                            .put("taskTimeout", task.getTimeout())
-                            .put("timeout", _timeout)
-                            .text("run() task[${taskId}]'s timeout: ${taskTimeout} | ${monitorTimeout} ~ ${timeout}")
-                            .stringify());
-                    if (_timeout > 0) {
-                        long diff = current - task.getTimestamp();
-                        if (diff > _timeout) {
-                            tasks.remove(key);
-                            task.raiseTimeout();
-                            if (logTask.ready(LOG, "trace")) LOG.trace(logTask
-                                    .put("taskId", key)
-                                    .put("diff", diff)
-                                    .put("timeout", _timeout)
-                                    .text("run() task[${taskId}] is timeout (diff: ${diff} > ${timeout}), rejected")
-                                    .stringify());
-                        } else {
-                            if (logTask.ready(LOG, "trace")) LOG.trace(logTask
-                                    .put("taskId", key)
-                                    .text("run() task[${taskId}] is good, keep running")
-                                    .stringify());
-                        }
-                    }
+            public long getDelay(TimeUnit unit) {
+                return unit.convert(deadline - OpflowUtil.getCurrentTime(), TimeUnit.MILLISECONDS);
+            }
+            
+            @Override
+            public int compareTo(Delayed other) {
+                if (other instanceof Deadline) {
+                    long diff = deadline - ((Deadline) other).deadline;
+                    return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
                 }
+                long diff = getDelay(TimeUnit.MILLISECONDS) - other.getDelay(TimeUnit.MILLISECONDS);
+                return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
             }
-        };
+        }
         
         public TimeoutMonitor(Map<String, ? extends Timeoutable> tasks) {
             this(tasks, 2000);
@@ -154,12 +150,29 @@ public class OpflowTask {
             this(tasks, interval, timeout, null);
         }
         
+        /**
+         * @param interval the monitor is only started when it is positive; the
+         * tasks are expired at their deadlines, not on a fixed interval
+         */
         public TimeoutMonitor(Map<String, ? extends Timeoutable> tasks, int interval, long timeout, String monitorId) {
             this.tasks = tasks;
             this.interval = interval;
             this.timeout = timeout;
             this.monitorId = (monitorId != null) ? monitorId : OpflowUtil.getLogID();
             logTracer = OpflowLogTracer.ROOT.branch("monitorId", this.monitorId);
+            worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (running) {
+                        try {
+                            expire(deadlines.take());
+                        } catch (InterruptedException ie) {
+                            // stop() has been invoked
+                        }
+                    }
+                }
+            }, "opflow-timeout-monitor-" + this.monitorId);
+            worker.setDaemon(true);
             if (logTracer.ready(LOG, "debug")) LOG.debug(logTracer
                     .put("interval", this.interval)
                     .put("timeout", this.timeout)
@@ -167,15 +180,99 @@ public class OpflowTask {
                     .stringify());
         }
         
+        /**
+         * Index the deadline of a task that has been put into the map.
+         *
+         * @param key the key of the task in the map
+         */
+        public void register(String key) {
+            // nobody takes the deadlines when the worker has not been started
+            if (!running) return;
+            Timeoutable task = tasks.get(key);
+            if (task == null) return;
+            long _timeout = getTimeout(task);
+            if (_timeout <= 0) return;
+            offer(new Deadline(key, task.getTimestamp() + _timeout));
+        }
+        
+        /**
+         * Forget the deadline of a task that has completed. The entry is not
+         * removed from the queue (an O(n) operation) at once: the stale entries
+         * are skipped when they expire, and purged in one pass when they
+         * outnumber the registered ones.
+         *
+         * @param key the key of the task in the map
+         */
+        public void unregister(String key) {
+            if (registered.remove(key) == null) return;
+            int count = unregisteredCount.incrementAndGet();
+            if (count > PURGE_THRESHOLD && count > registered.size()) {
+                purge();
+            }
+        }
+        
+        private void offer(Deadline entry) {
+            registered.put(entry.key, entry);
+            deadlines.offer(entry);
+        }
+        
+        private synchronized void purge() {
+            if (unregisteredCount.get() <= PURGE_THRESHOLD) return;
+            unregisteredCount.set(0);
+            Iterator<Deadline> iter = deadlines.iterator();
+            while (iter.hasNext()) {
+                Deadline entry = iter.next();
+                if (registered.get(entry.key) != entry) iter.remove();
+            }
+        }
+        
+        private long getTimeout(Timeoutable task) {
+            long _timeout = task.getTimeout();
+            if (_timeout <= 0) _timeout = timeout;
+            return _timeout;
+        }
+        
+        private void expire(Deadline entry) {
+            if (registered.get(entry.key) != entry) return;
+            Timeoutable task = tasks.get(entry.key);
+            if (task == null) {
+                registered.remove(entry.key, entry);
+                return;
+            }
+            long _timeout = getTimeout(task);
+            long current = OpflowUtil.getCurrentTime();
+            long diff = current - task.getTimestamp();
+            if (diff <= _timeout) {
+                offer(new Deadline(entry.key, task.getTimestamp() + _timeout + 1));
+                if (logTracer.ready(LOG, "trace")) LOG.trace(logTracer
+                        .put("taskId", entry.key)
+                        .text("Monitor[${monitorId}] task[${taskId}] has been refreshed, deadline is moved")
+                        .stringify());
+                return;
+            }
+            registered.remove(entry.key, entry);
+            if (tasks.remove(entry.key) == null) return;
+            task.raiseTimeout();
+            if (logTracer.ready(LOG, "trace")) LOG.trace(logTracer
+                    .put("taskId", entry.key)
+                    .put("diff", diff)
+                    .put("timeout", _timeout)
+                    .text("Monitor[${monitorId}] task[${taskId}] is timeout (diff: ${diff} > ${timeout}), rejected")
+                    .stringify());
+        }
+        
         public void start() {
             if (logTracer.ready(LOG, "debug")) LOG.debug(logTracer
                     .text("Monitor.start()")
                     .stringify());
             if (interval > 0) {
-                timer.scheduleAtFixedRate(timerTask, 0, interval);
+                running = true;
+                worker.start();
+                for (String key : tasks.keySet()) {
+                    register(key);
+                }
                 if (logTracer.ready(LOG, "debug")) LOG.debug(logTracer
-                        .put("interval", interval)
-                        .text("Monitor has been started with interval: ${interval}")
+                        .text("Monitor has been started")
                         .stringify());
             } else {
                 if (logTracer.ready(LOG, "debug")) LOG.debug(logTracer
@@ -189,74 +286,10 @@ public class OpflowTask {
             if (logTracer.ready(LOG, "debug")) LOG.debug(logTracer
                     .text("Monitor.stop()")
                     .stringify());
-            timer.cancel();
-            timer.purge();
-        }
-    }
-    
-    public static class TimeoutWatcher extends Thread {
-        private final static Logger LOG = LoggerFactory.getLogger(TimeoutWatcher.class);
-        private final OpflowLogTracer logTracer;
-        
-        public TimeoutWatcher(String requestId, long max, Listener listener) {
-            this.requestId = requestId;
-            logTracer = OpflowLogTracer.ROOT.branch("requestId", this.requestId);
-            if (max > 0) {
-                this.max = max;
-            }
-            this.listener = listener;
-        }
-
-        public TimeoutWatcher(String taskId, long interval, long max, Listener listener) {
-            this(taskId, max, listener);
-            if (interval > 0) {
-                this.interval = interval;
-            }
-        }
-
-        private String requestId;
-        private Listener listener;
-        private long interval = 1000;
-        private long max = 0;
-        private long count = 0;
-        private boolean done = false;
-
-        @Override
-        public void run() {
-            while(count < max && !done) {
-                try {
-                    Thread.sleep(interval);
-                    count += interval;
-                    if (logTracer.ready(LOG, "trace")) LOG.trace(logTracer
-                            .text("TimeoutWatcher is interrupted")
-                            .stringify());
-                    if (logTracer.ready(LOG, "trace")) LOG.trace(logTracer
-                            .put("count", count)
-                            .put("max", max)
-                            .text("TimeoutWatcher.listener is requested")
-                            .stringify());
-                    if (count >= max) {
-                        if (this.listener != null) {
-                            listener.handleEvent();
-                        }
-                        if (logTracer.ready(LOG, "trace")) LOG.trace(logTracer
-                                .text("TimeoutWatcher.listener is requested")
-                                .stringify());
-                        this.interrupt();
-                    }
-                } catch(InterruptedException ie) {}
-            }
-        }
-
-        public void check() {
-            this.count = 0;
-        }
-
-        public void close() {
-            this.done = true;
-            if (logTracer.ready(LOG, "trace")) LOG.trace(logTracer
-                    .text("TimeoutWatcher is closed gracefully")
-                    .stringify());
+            running = false;
+            worker.interrupt();
+            deadlines.clear();
+            registered.clear();
         }
     }
 }
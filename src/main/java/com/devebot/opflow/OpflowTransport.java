@@ -0,0 +1,22 @@
+package com.devebot.opflow;
+
+import com.rabbitmq.client.Connection;
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The source of the connections of an OpflowEngine. The produce, consume,
+ * ack and declare operations are issued on the channels of the returned
+ * connections, so an implementation only has to provide the channels.
+ *
+ * @author drupalex
+ */
+public interface OpflowTransport {
+    public Connection newConnection() throws IOException, TimeoutException;
+
+    public String getHost();
+
+    public int getPort();
+
+    public String getVirtualHost();
+}
@@ -5,6 +5,9 @@ import java.lang.reflect.Array;
 import java.lang.reflect.Method;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -34,10 +37,17 @@ import java.util.TimeZone;
 public class OpflowUtil {
     private static final Logger LOG = LoggerFactory.getLogger(OpflowUtil.class);
     private static final String ISO8601_TEMPLATE = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
-    private static final DateFormat DATE_FORMAT = new SimpleDateFormat(ISO8601_TEMPLATE);
+    private static final ThreadLocal<DateFormat> DATE_FORMAT = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            // SimpleDateFormat is not thread-safe, each thread has its own
+            DateFormat format = new SimpleDateFormat(ISO8601_TEMPLATE);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return format;
+        }
+    };
     private static final boolean OPFLOW_BASE64UUID;
     static {
-        DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("UTC"));
         OPFLOW_BASE64UUID = !"false".equals(OpflowUtil.getSystemProperty("OPFLOW_BASE64UUID", null)) &&
                 !"false".equals(OpflowUtil.getEnvironVariable("OPFLOW_BASE64UUID", null));
     }
@@ -83,12 +93,12 @@ public class OpflowUtil {
     }
     
     public static String toISO8601UTC(Date date) {
-        return DATE_FORMAT.format(date);
+        return DATE_FORMAT.get().format(date);
     }
     
     public static Date fromISO8601UTC(String dateStr) {
         try {
-            return DATE_FORMAT.parse(dateStr);
+            return DATE_FORMAT.get().parse(dateStr);
         } catch (ParseException e) {}
         return null;
     }
@@ -135,6 +145,23 @@ public class OpflowUtil {
         }
     }
     
+    /**
+     * @return true if the data is a well-formed UTF-8 sequence, i.e. it is not
+     * altered by a getString()/getBytes() round trip
+     */
+    public static boolean isUTF8(byte[] data) {
+        if (data == null) return true;
+        try {
+            StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(data));
+            return true;
+        } catch (CharacterCodingException exception) {
+            return false;
+        }
+    }
+    
     public static String getString(byte[] data) {
         if (data == null) return null;
         try {
@@ -0,0 +1,263 @@
+package com.devebot.opflow;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hashed-wheel timer for the deadlines of the in-flight requests. One
+ * worker thread advances the wheel every tickDuration; schedule() and cancel()
+ * only enqueue the timeout, so both are O(1) and never block on the worker.
+ * The listeners of the expired timeouts are invoked on the worker thread and
+ * must be short.
+ *
+ * @author drupalex
+ */
+public class OpflowWheelTimer {
+    private final static Logger LOG = LoggerFactory.getLogger(OpflowWheelTimer.class);
+    private final static OpflowWheelTimer INSTANCE = new OpflowWheelTimer("opflow-wheel-timer", 10, 1024);
+
+    private final static int WORKER_INIT = 0;
+    private final static int WORKER_STARTED = 1;
+    private final static int WORKER_STOPPED = 2;
+    private final static int STATE_INIT = 0;
+    private final static int STATE_CANCELLED = 1;
+    private final static int STATE_EXPIRED = 2;
+    private final static int MAX_TRANSFERS_PER_TICK = 100000;
+
+    public static OpflowWheelTimer getInstance() {
+        return INSTANCE;
+    }
+
+    private final OpflowLogTracer logTracer;
+    private final String timerId;
+    private final long tickDuration;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger workerState = new AtomicInteger(WORKER_INIT);
+    private final CountDownLatch startTimeInitialized = new CountDownLatch(1);
+    private final Thread worker;
+    private volatile long startTime = 0;
+    private long tick = 0;
+
+    /**
+     * @param timerId the name of the worker thread
+     * @param tickDuration the precision of the timer in milliseconds
+     * @param wheelSize the number of buckets, rounded up to a power of 2
+     */
+    public OpflowWheelTimer(String timerId, long tickDuration, int wheelSize) {
+        this.timerId = (timerId != null) ? timerId : OpflowUtil.getLogID();
+        this.tickDuration = TimeUnit.MILLISECONDS.toNanos(tickDuration > 0 ? tickDuration : 10);
+        int size = 1;
+        while (size < wheelSize) size <<= 1;
+        this.wheel = new Bucket[size];
+        for (int i=0; i<size; i++) {
+            this.wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.logTracer = OpflowLogTracer.ROOT.branch("timerId", this.timerId);
+        this.worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, this.timerId);
+        this.worker.setDaemon(true);
+    }
+
+    public class Timeout {
+        private final OpflowTask.Listener listener;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(STATE_INIT);
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        Timeout(OpflowTask.Listener listener, long deadline) {
+            this.listener = listener;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return false if the timeout has already expired or been cancelled
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(STATE_INIT, STATE_CANCELLED)) return false;
+            cancelled.add(this);
+            return true;
+        }
+
+        public boolean isExpired() {
+            return state.get() == STATE_EXPIRED;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == STATE_CANCELLED;
+        }
+
+        void expire() {
+            if (!state.compareAndSet(STATE_INIT, STATE_EXPIRED)) return;
+            try {
+                listener.handleEvent();
+            } catch (Throwable exception) {
+                if (logTracer.ready(LOG, "error")) LOG.error(logTracer
+                        .put("exceptionClass", exception.getClass().getName())
+                        .put("exceptionMessage", exception.getMessage())
+                        .text("WheelTimer[${timerId}] timeout listener has failed, exception[${exceptionClass}]: ${exceptionMessage}")
+                        .stringify());
+            }
+        }
+    }
+
+    /**
+     * Schedule the listener to be invoked once after the delay.
+     *
+     * @param delay the delay in milliseconds
+     * @return the handle to cancel the timeout
+     */
+    public Timeout schedule(long delay, OpflowTask.Listener listener) {
+        start();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay) - startTime;
+        Timeout timeout = new Timeout(listener, deadline);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    private void start() {
+        switch (workerState.get()) {
+            case WORKER_INIT:
+                if (workerState.compareAndSet(WORKER_INIT, WORKER_STARTED)) {
+                    worker.start();
+                    if (logTracer.ready(LOG, "debug")) LOG.debug(logTracer
+                            .put("tickDuration", TimeUnit.NANOSECONDS.toMillis(tickDuration))
+                            .put("wheelSize", wheel.length)
+                            .text("WheelTimer[${timerId}] has been started, tickDuration: ${tickDuration}, wheelSize: ${wheelSize}")
+                            .stringify());
+                }
+                break;
+            case WORKER_STARTED:
+                break;
+            default:
+                throw new IllegalStateException("WheelTimer[" + timerId + "] has been stopped");
+        }
+        while (startTime == 0) {
+            try {
+                startTimeInitialized.await();
+            } catch (InterruptedException ie) {
+                // the worker is going to set the startTime, wait again
+            }
+        }
+    }
+
+    public void stop() {
+        if (workerState.getAndSet(WORKER_STOPPED) == WORKER_STARTED) {
+            worker.interrupt();
+        }
+    }
+
+    private void work() {
+        long now = System.nanoTime();
+        startTime = (now == 0) ? 1 : now;
+        startTimeInitialized.countDown();
+        while (workerState.get() == WORKER_STARTED) {
+            long deadline = waitForNextTick();
+            if (deadline > 0) {
+                removeCancelled();
+                transferPending();
+                wheel[(int) (tick & mask)].expire(deadline);
+                tick++;
+            }
+        }
+    }
+
+    private long waitForNextTick() {
+        long deadline = tickDuration * (tick + 1);
+        while (true) {
+            long current = System.nanoTime() - startTime;
+            long sleepTime = (deadline - current + 999999) / 1000000;
+            if (sleepTime <= 0) {
+                return current;
+            }
+            try {
+                Thread.sleep(sleepTime);
+            } catch (InterruptedException ie) {
+                if (workerState.get() == WORKER_STOPPED) return -1;
+            }
+        }
+    }
+
+    private void transferPending() {
+        for (int i=0; i<MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout timeout = pending.poll();
+            if (timeout == null) break;
+            if (timeout.isCancelled()) continue;
+            long calculated = timeout.deadline / tickDuration;
+            timeout.remainingRounds = (calculated - tick) / wheel.length;
+            long ticks = Math.max(calculated, tick);
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void removeCancelled() {
+        while (true) {
+            Timeout timeout = cancelled.poll();
+            if (timeout == null) break;
+            if (timeout.bucket != null) timeout.bucket.remove(timeout);
+        }
+    }
+
+    private static class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        Timeout remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.prev != null) timeout.prev.next = next;
+            if (timeout.next != null) timeout.next.prev = timeout.prev;
+            if (timeout == head) head = next;
+            if (timeout == tail) tail = timeout.prev;
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+            return next;
+        }
+
+        void expire(long deadline) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                if (timeout.isCancelled()) {
+                    timeout = remove(timeout);
+                } else if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+                    Timeout next = remove(timeout);
+                    timeout.expire();
+                    timeout = next;
+                } else {
+                    if (timeout.remainingRounds > 0) timeout.remainingRounds--;
+                    timeout = timeout.next;
+                }
+            }
+        }
+    }
+}
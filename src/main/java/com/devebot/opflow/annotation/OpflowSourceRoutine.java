@@ -14,4 +14,22 @@ import java.lang.annotation.Target;
 public @interface OpflowSourceRoutine {
     String alias() default "";
     boolean isAsync() default false;
+    /**
+     * The time to live (in milliseconds) of the locally cached results, 0
+     * disables the cache. Only for the idempotent routines.
+     */
+    long cacheTtl() default 0;
+    int cacheMaxEntries() default 1000;
+    CacheKey cacheKey() default CacheKey.ARGUMENTS;
+
+    public enum CacheKey {
+        /**
+         * One entry per distinct list of arguments (their JSON form).
+         */
+        ARGUMENTS,
+        /**
+         * One entry for the routine, whatever the arguments are.
+         */
+        ROUTINE
+    }
 }
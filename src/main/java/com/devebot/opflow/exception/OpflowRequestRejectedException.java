@@ -0,0 +1,27 @@
+package com.devebot.opflow.exception;
+
+/**
+ *
+ * @author drupalex
+ */
+public class OpflowRequestRejectedException extends OpflowOperationException {
+
+    public OpflowRequestRejectedException() {
+    }
+
+    public OpflowRequestRejectedException(String message) {
+        super(message);
+    }
+
+    public OpflowRequestRejectedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public OpflowRequestRejectedException(Throwable cause) {
+        super(cause);
+    }
+
+    public OpflowRequestRejectedException(String message, Throwable cause, boolean enableSuppression, boolean writableStackTrace) {
+        super(message, cause, enableSuppression, writableStackTrace);
+    }
+}
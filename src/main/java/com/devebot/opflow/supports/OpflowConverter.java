@@ -60,6 +60,14 @@ public final class OpflowConverter {
         return value.toString();
     }
 
+    private static Long stringToLong(String value) {
+        return Long.valueOf(value);
+    }
+
+    private static Long integerToLong(Integer value) {
+        return value.longValue();
+    }
+
     private static Boolean stringToBoolean(String value) {
         return Boolean.valueOf(value);
     }